@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.tzutalin.dlib.FaceResultView;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Counts the Java objects the per-face hot path allocates on the calling thread once warmed
+ * up, with the VM's allocation counters; they only count on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+@SuppressWarnings("deprecation")
+public class FrameAllocationTest {
+    private static final int SIZE = 320;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 100;
+
+    @Before
+    public void setup() {
+        Assume.assumeTrue(OpenCVLoader.initDebug());
+        Debug.startAllocCounting();
+    }
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+    }
+
+    @Test
+    public void testEyeSearchAllocatesNothing() {
+        byte[] face = new byte[SIZE * SIZE];
+        for (int i = 0; i < face.length; i++) {
+            face[i] = (byte) (i * 31);
+        }
+        EyeCenterLocator locator = new EyeCenterLocator(10, 5, true, 1.0, 50.0);
+        Rect left = new Rect(100, 120, 40, 14);
+        Rect right = new Rect(180, 118, 36, 12);
+        Point center = new Point();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            locator.findEyeCenter(face, SIZE, left, center);
+            locator.findEyeCenter(face, SIZE, right, center);
+        }
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < ROUNDS; i++) {
+            locator.findEyeCenter(face, SIZE, left, center);
+            locator.findEyeCenter(face, SIZE, right, center);
+        }
+        final int allocated = Debug.getThreadAllocCount();
+        locator.release();
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void testOverlayFillAllocatesNothing() {
+        FrameSlot slot = new FrameSlot(SIZE, 2);
+        slot.faceCount = 2;
+        slot.faces[0] = 2;
+        for (int f = 0; f < 2; f++) {
+            slot.analysis[f].valid = true;
+            slot.trackIds[f] = f + 1;
+        }
+        FaceResultView view = new FaceResultView();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            slot.overlay.set(slot, view);
+        }
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < ROUNDS; i++) {
+            slot.frameId = i;
+            slot.overlay.set(slot, view);
+        }
+        final int allocated = Debug.getThreadAllocCount();
+        slot.release();
+        assertEquals(0, allocated);
+        assertEquals(2, slot.overlay.getFaceCount());
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Steps the camera preview frame rate up or down so the end-to-end latency of a frame, from
+ * ingest to render, stays within a budget.
+ * <p>
+ * The preview keeps one size: ingest samples every frame down to the detector input anyway, so
+ * the size hardly changes the latency, while changing it means recreating the capture session.
+ * The supported frame rates at that size form a ladder ordered by pixel rate. Every
+ * frame reports its latency; once a full window of frames is averaged the controller moves one
+ * step down if the average is over the budget, or one step up if it is well under it. After a
+ * step down the level it left stays off limits for a while, so the controller does not
+ * oscillate between two levels. A change only reaches the camera through the {@link Listener},
+ * which decides whether a new repeating request suffices or the session has to be recreated.
+ */
+public class AdaptivePreviewController {
+    // Step up only when the average latency is below this share of the budget
+    private static final float STEP_UP_RATIO = 0.6f;
+    // Windows during which a level just stepped down from is not retried
+    private static final int BACKOFF_WINDOWS = 10;
+
+    /**
+     * One preview configuration.
+     */
+    public static final class Level {
+        public final int width;
+        public final int height;
+        public final int minFps;
+        public final int maxFps;
+
+        public Level(int width, int height, int minFps, int maxFps) {
+            this.width = width;
+            this.height = height;
+            this.minFps = minFps;
+            this.maxFps = maxFps;
+        }
+
+        public long getPixelRate() {
+            return (long) width * height * maxFps;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + minFps + "-" + maxFps;
+        }
+    }
+
+    /**
+     * Called on the thread reporting latencies whenever the level changes.
+     */
+    public interface Listener {
+        void onLevelChanged(Level previous, Level next);
+    }
+
+    private final List<Level> mLadder;
+    private final long mBudgetNs;
+    private final long[] mWindow;
+    private final Listener mListener;
+    private int mLevel;
+    private int mNext;
+    private int mFilled;
+    private long mSum;
+    private long mAverageNs;
+    private int mCeiling;
+    private int mBackoff;
+    private int mChangeCount;
+
+    /**
+     * @param ladder     Levels from {@link #buildLadder(int[][], int[][], int, int, int)}
+     * @param budgetNs   End-to-end latency the controller aims for
+     * @param windowSize Frames averaged for one decision
+     * @param initialPixelRate The controller starts on the fastest level within this pixel rate
+     */
+    public AdaptivePreviewController(List<Level> ladder, long budgetNs, int windowSize,
+                                     long initialPixelRate, Listener listener) {
+        if (ladder.isEmpty()) {
+            throw new IllegalArgumentException("No preview levels");
+        }
+        mLadder = new ArrayList<>(ladder);
+        mBudgetNs = budgetNs;
+        mWindow = new long[windowSize];
+        mListener = listener;
+        mCeiling = mLadder.size() - 1;
+        for (int i = 0; i < mLadder.size(); i++) {
+            if (mLadder.get(i).getPixelRate() <= initialPixelRate) {
+                mLevel = i;
+            }
+        }
+    }
+
+    /**
+     * Pick one of the supported output sizes and combine it with the AE target fps ranges into
+     * levels ordered by frame rate. Sizes outside [minSide, maxArea] are left out unless that
+     * would leave none; of the rest the largest one within targetArea is used, or the smallest
+     * if none is. For each maximum frame rate only the range with the highest minimum is kept,
+     * it holds the rate best.
+     *
+     * @param sizes      {width, height} pairs
+     * @param fpsRanges  {lower, upper} pairs
+     */
+    public static List<Level> buildLadder(int[][] sizes, int[][] fpsRanges, int minSide, int maxArea,
+                                          int targetArea) {
+        List<int[]> usable = new ArrayList<>();
+        for (int[] size : sizes) {
+            if (Math.min(size[0], size[1]) >= minSide && size[0] * size[1] <= maxArea) {
+                usable.add(size);
+            }
+        }
+        if (usable.isEmpty()) {
+            Collections.addAll(usable, sizes);
+        }
+        int[] size = null;
+        for (int[] candidate : usable) {
+            if (candidate[0] * candidate[1] <= targetArea
+                    && (size == null || candidate[0] * candidate[1] > size[0] * size[1])) {
+                size = candidate;
+            }
+        }
+        if (size == null) {
+            for (int[] candidate : usable) {
+                if (size == null || candidate[0] * candidate[1] < size[0] * size[1]) {
+                    size = candidate;
+                }
+            }
+        }
+
+        List<int[]> rates = new ArrayList<>();
+        for (int[] range : fpsRanges) {
+            boolean replaced = false;
+            for (int i = 0; i < rates.size(); i++) {
+                if (rates.get(i)[1] == range[1]) {
+                    if (range[0] > rates.get(i)[0]) {
+                        rates.set(i, range);
+                    }
+                    replaced = true;
+                }
+            }
+            if (!replaced) {
+                rates.add(range);
+            }
+        }
+
+        List<Level> ladder = new ArrayList<>();
+        for (int[] rate : rates) {
+            ladder.add(new Level(size[0], size[1], rate[0], rate[1]));
+        }
+        Collections.sort(ladder, new Comparator<Level>() {
+            @Override
+            public int compare(Level lhs, Level rhs) {
+                return lhs.maxFps - rhs.maxFps;
+            }
+        });
+        return ladder;
+    }
+
+    /**
+     * Record the end-to-end latency of one frame, and change level if a full window calls for it.
+     *
+     * @return The new level, or null if the level did not change
+     */
+    public Level onFrameLatency(long latencyNs) {
+        final Level previous;
+        final Level next;
+        synchronized (this) {
+            mSum += latencyNs - mWindow[mNext];
+            mWindow[mNext] = latencyNs;
+            mNext = (mNext + 1) % mWindow.length;
+            if (mFilled < mWindow.length && ++mFilled < mWindow.length) {
+                return null;
+            }
+            mAverageNs = mSum / mWindow.length;
+            if (mBackoff > 0 && --mBackoff == 0) {
+                mCeiling = mLadder.size() - 1;
+            }
+
+            int target = mLevel;
+            if (mAverageNs > mBudgetNs && mLevel > 0) {
+                target = mLevel - 1;
+                mCeiling = target;
+                mBackoff = BACKOFF_WINDOWS * mWindow.length;
+            } else if (mAverageNs < mBudgetNs * STEP_UP_RATIO && mLevel < mCeiling) {
+                target = mLevel + 1;
+            }
+            if (target == mLevel) {
+                return null;
+            }
+            previous = mLadder.get(mLevel);
+            next = mLadder.get(target);
+            mLevel = target;
+            mChangeCount++;
+            // Frames still in flight were captured at the old level, start a fresh window
+            mNext = 0;
+            mFilled = 0;
+            mSum = 0;
+            Arrays.fill(mWindow, 0);
+        }
+        if (mListener != null) {
+            mListener.onLevelChanged(previous, next);
+        }
+        return next;
+    }
+
+    public synchronized Level getLevel() {
+        return mLadder.get(mLevel);
+    }
+
+    public synchronized int getLevelIndex() {
+        return mLevel;
+    }
+
+    public int getLevelCount() {
+        return mLadder.size();
+    }
+
+    /**
+     * @return Average latency of the last full window, 0 before the first one
+     */
+    public synchronized long getAverageLatencyNs() {
+        return mAverageNs;
+    }
+
+    public synchronized int getChangeCount() {
+        return mChangeCount;
+    }
+}
@@ -74,6 +74,18 @@ public class CameraConnectionFragment extends Fragment {
      * containing a DESIRED_SIZE x DESIRED_SIZE square.
      */
     private static final int MINIMUM_PREVIEW_SIZE = 320;
+    // Larger previews risk exceeding the camera bus bandwidth, see setUpCameraOutputs
+    private static final int MAXIMUM_PREVIEW_AREA = 1920 * 1080;
+    // The preview keeps the largest size up to VGA; ingest samples every frame down to the
+    // detector input, so a larger one would only cost bandwidth
+    private static final int TARGET_PREVIEW_AREA = 640 * 480;
+    // End-to-end frame latency the adaptive preview aims for, averaged over a window of frames
+    private static final long PREVIEW_LATENCY_BUDGET_NS = 150000000L;
+    private static final int PREVIEW_LATENCY_WINDOW = 30;
+    // The preview starts on the fastest level within the pixel rate of VGA at 15 fps
+    private static final long INITIAL_PREVIEW_PIXEL_RATE = 640L * 480 * 15;
+    // Delay before a preview level change blocked by a camera open or close is retried
+    private static final long PREVIEW_LEVEL_RETRY_MS = 100;
     private static final String TAG = "CameraConnectionFragment";
 
     private TrasparentTitleView mScoreView;
@@ -144,6 +156,16 @@ public class CameraConnectionFragment extends Fragment {
      */
     private Size previewSize;
 
+    /**
+     * The AE target frame rate range of camera preview.
+     */
+    private Range<Integer> previewFpsRange;
+
+    /**
+     * Picks {@link #previewSize} and {@link #previewFpsRange} from the measured frame latency.
+     */
+    private AdaptivePreviewController previewController;
+
     /**
      * {@link android.hardware.camera2.CameraDevice.StateCallback}
      * is called when {@link CameraDevice} changes its state.
@@ -324,6 +346,13 @@ public class CameraConnectionFragment extends Fragment {
         super.onPause();
     }
 
+    @Override
+    public void onConfigurationChanged(final Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // The preview listener caches the display rotation it samples frames with
+        mOnGetPreviewListener.updateScreenRotation();
+    }
+
     /**
      * Sets up member variables related to camera.
      *
@@ -375,25 +404,19 @@ public class CameraConnectionFragment extends Fragment {
                     continue;
                 }
 
-                // For still image captures, we use the largest available size.
-                final Size largest =
-                        Collections.max(
-                                Arrays.asList(map.getOutputSizes(ImageFormat.YUV_420_888)),
-                                new CompareSizesByArea());
-
                 // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
                 // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
                 // garbage capture data.
-                previewSize = new Size(15,15);
-                        //chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class), 1, 1, new Size(1,1));
+                // The adaptive controller keeps one size, at most MAXIMUM_PREVIEW_AREA.
+                previewController = createPreviewController(map.getOutputSizes(ImageFormat.YUV_420_888),
+                        characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+                final AdaptivePreviewController.Level level = previewController.getLevel();
+                previewSize = new Size(level.width, level.height);
+                previewFpsRange = new Range<>(level.minFps, level.maxFps);
+                Log.i(TAG, "Preview levels: " + previewController.getLevelCount() + ", starting at " + level);
 
                 // We fit the aspect ratio of TextureView to the size of preview we picked.
-                final int orientation = getResources().getConfiguration().orientation;
-                if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                    textureView.setAspectRatio(previewSize.getWidth(), previewSize.getHeight());
-                } else {
-                    textureView.setAspectRatio(previewSize.getHeight(), previewSize.getWidth());
-                }
+                updateAspectRatio();
                 CameraConnectionFragment.this.cameraId = cameraId;
                 return;
             }
@@ -407,6 +430,89 @@ public class CameraConnectionFragment extends Fragment {
         }
     }
 
+    private AdaptivePreviewController createPreviewController(final Size[] sizes, final Range<Integer>[] fpsRanges) {
+        final int[][] sizePairs = new int[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            sizePairs[i] = new int[]{sizes[i].getWidth(), sizes[i].getHeight()};
+        }
+        int[][] fpsPairs = {{15, 15}};
+        if (fpsRanges != null && fpsRanges.length > 0) {
+            fpsPairs = new int[fpsRanges.length][];
+            for (int i = 0; i < fpsRanges.length; i++) {
+                fpsPairs[i] = new int[]{fpsRanges[i].getLower(), fpsRanges[i].getUpper()};
+            }
+        }
+        return new AdaptivePreviewController(
+                AdaptivePreviewController.buildLadder(sizePairs, fpsPairs, MINIMUM_PREVIEW_SIZE, MAXIMUM_PREVIEW_AREA,
+                        TARGET_PREVIEW_AREA),
+                PREVIEW_LATENCY_BUDGET_NS, PREVIEW_LATENCY_WINDOW, INITIAL_PREVIEW_PIXEL_RATE,
+                new AdaptivePreviewController.Listener() {
+                    @Override
+                    public void onLevelChanged(final AdaptivePreviewController.Level previous,
+                                               final AdaptivePreviewController.Level next) {
+                        final Handler handler = backgroundHandler;
+                        if (handler != null) {
+                            handler.removeCallbacks(applyPreviewLevel);
+                            handler.post(applyPreviewLevel);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Fits the aspect ratio of the TextureView to {@link #previewSize}.
+     */
+    private void updateAspectRatio() {
+        final int orientation = getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            textureView.setAspectRatio(previewSize.getWidth(), previewSize.getHeight());
+        } else {
+            textureView.setAspectRatio(previewSize.getHeight(), previewSize.getWidth());
+        }
+    }
+
+    /**
+     * Brings the running session in line with the level of {@link #previewController}. Levels
+     * share the preview size, so a new frame rate only needs a new repeating request.
+     * Runs on the background thread, and retries while the camera opens or closes.
+     */
+    private final Runnable applyPreviewLevel =
+            new Runnable() {
+                @SuppressLint("LongLogTag")
+                @Override
+                public void run() {
+                    if (!cameraOpenCloseLock.tryAcquire()) {
+                        // The camera is opening or closing; try again rather than keep a level
+                        // the controller believes is already applied
+                        final Handler handler = backgroundHandler;
+                        if (handler != null) {
+                            handler.postDelayed(this, PREVIEW_LEVEL_RETRY_MS);
+                        }
+                        return;
+                    }
+                    try {
+                        // A restarting session reconciles again once it is configured
+                        if (null == cameraDevice || null == captureSession || null == previewController) {
+                            return;
+                        }
+                        final AdaptivePreviewController.Level level = previewController.getLevel();
+                        final Range<Integer> fps = new Range<>(level.minFps, level.maxFps);
+                        if (fps.equals(previewFpsRange)) {
+                            return;
+                        }
+                        Log.i(TAG, "Preview frame rate " + fps);
+                        previewFpsRange = fps;
+                        previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, previewFpsRange);
+                        previewRequest = previewRequestBuilder.build();
+                        captureSession.setRepeatingRequest(previewRequest, captureCallback, backgroundHandler);
+                    } catch (final CameraAccessException e) {
+                        Log.e(TAG, "Exception!", e);
+                    } finally {
+                        cameraOpenCloseLock.release();
+                    }
+                }
+            };
+
     /**
      * Opens the camera specified by {@link CameraConnectionFragment#cameraId}.
      */
@@ -453,6 +559,7 @@ public class CameraConnectionFragment extends Fragment {
                 previewReader = null;
             }
             if (null != mOnGetPreviewListener) {
+                mOnGetPreviewListener.setPreviewController(null);
                 mOnGetPreviewListener.deInitialize();
             }
         } catch (final InterruptedException e) {
@@ -521,75 +628,85 @@ public class CameraConnectionFragment extends Fragment {
     @DebugLog
     private void createCameraPreviewSession() {
         try {
-            final SurfaceTexture texture = textureView.getSurfaceTexture();
-            assert texture != null;
+            startPreviewSession();
+        } catch (final CameraAccessException e) {
+            Log.e(TAG, "Exception!", e);
+        }
 
-            // We configure the size of default buffer to be the size of camera preview we want.
-            texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+        Log.i(TAG, "Getting assets.");
+        mOnGetPreviewListener.initialize(getActivity().getApplicationContext(), getActivity().getAssets(), mScoreView, inferenceHandler);
+        mOnGetPreviewListener.setPreviewController(previewController);
+    }
 
-            // This is the output Surface we need to start preview.
-            final Surface surface = new Surface(texture);
+    /**
+     * Creates the preview reader and session for {@link #previewSize} and {@link #previewFpsRange}.
+     */
+    @SuppressLint("LongLogTag")
+    private void startPreviewSession() throws CameraAccessException {
+        final SurfaceTexture texture = textureView.getSurfaceTexture();
+        assert texture != null;
 
-            // We set up a CaptureRequest.Builder with the output Surface.
-            previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            Range<Integer> fps = new Range<Integer>(15,15);
-            previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,fps);
-            previewRequestBuilder.addTarget(surface);
+        // We configure the size of default buffer to be the size of camera preview we want.
+        texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
 
-            Log.i(TAG, "Opening camera preview: " + previewSize.getWidth() + "x" + previewSize.getHeight());
+        // This is the output Surface we need to start preview.
+        final Surface surface = new Surface(texture);
 
-            // Create the reader for the preview frames.
-            previewReader =
-                    ImageReader.newInstance(
-                            previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+        // We set up a CaptureRequest.Builder with the output Surface.
+        previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, previewFpsRange);
+        previewRequestBuilder.addTarget(surface);
 
-            previewReader.setOnImageAvailableListener(mOnGetPreviewListener, backgroundHandler);
-            previewRequestBuilder.addTarget(previewReader.getSurface());
+        Log.i(TAG, "Opening camera preview: " + previewSize.getWidth() + "x" + previewSize.getHeight());
 
-            // Here, we create a CameraCaptureSession for camera preview.
-            cameraDevice.createCaptureSession(
-                    Arrays.asList(surface, previewReader.getSurface()),
-                    new CameraCaptureSession.StateCallback() {
+        // Create the reader for the preview frames.
+        previewReader =
+                ImageReader.newInstance(
+                        previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
 
-                        @Override
-                        public void onConfigured(final CameraCaptureSession cameraCaptureSession) {
-                            // The camera is already closed
-                            if (null == cameraDevice) {
-                                return;
-                            }
-
-                            // When the session is ready, we start displaying the preview.
-                            captureSession = cameraCaptureSession;
-                            try {
-                                // Auto focus should be continuous for camera preview.
-                                previewRequestBuilder.set(
-                                        CaptureRequest.CONTROL_AF_MODE,
-                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                                // Flash is automatically enabled when necessary.
-                                previewRequestBuilder.set(
-                                        CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-
-                                // Finally, we start displaying the camera preview.
-                                previewRequest = previewRequestBuilder.build();
-                                captureSession.setRepeatingRequest(
-                                        previewRequest, captureCallback, backgroundHandler);
-                            } catch (final CameraAccessException e) {
-                                Log.e(TAG, "Exception!", e);
-                            }
+        previewReader.setOnImageAvailableListener(mOnGetPreviewListener, backgroundHandler);
+        previewRequestBuilder.addTarget(previewReader.getSurface());
+
+        // Here, we create a CameraCaptureSession for camera preview.
+        cameraDevice.createCaptureSession(
+                Arrays.asList(surface, previewReader.getSurface()),
+                new CameraCaptureSession.StateCallback() {
+
+                    @Override
+                    public void onConfigured(final CameraCaptureSession cameraCaptureSession) {
+                        // The camera is already closed
+                        if (null == cameraDevice) {
+                            return;
                         }
 
-                        @Override
-                        public void onConfigureFailed(final CameraCaptureSession cameraCaptureSession) {
-                            showToast("Failed");
+                        // When the session is ready, we start displaying the preview.
+                        captureSession = cameraCaptureSession;
+                        try {
+                            // Auto focus should be continuous for camera preview.
+                            previewRequestBuilder.set(
+                                    CaptureRequest.CONTROL_AF_MODE,
+                                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                            // Flash is automatically enabled when necessary.
+                            previewRequestBuilder.set(
+                                    CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+
+                            // Finally, we start displaying the camera preview.
+                            previewRequest = previewRequestBuilder.build();
+                            captureSession.setRepeatingRequest(
+                                    previewRequest, captureCallback, backgroundHandler);
+                            // The controller may have moved on while the session was configured
+                            backgroundHandler.post(applyPreviewLevel);
+                        } catch (final CameraAccessException e) {
+                            Log.e(TAG, "Exception!", e);
                         }
-                    },
-                    null);
-        } catch (final CameraAccessException e) {
-            Log.e(TAG, "Exception!", e);
-        }
+                    }
 
-        Log.i(TAG, "Getting assets.");
-        mOnGetPreviewListener.initialize(getActivity().getApplicationContext(), getActivity().getAssets(), mScoreView, inferenceHandler);
+                    @Override
+                    public void onConfigureFailed(final CameraCaptureSession cameraCaptureSession) {
+                        showToast("Failed");
+                    }
+                },
+                null);
     }
 
     /**
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit displacement vectors for every (gradient - center) offset of a rows x cols eye.
+ * <p>
+ * The normalized vector only depends on the offset, so one table of (2 * rows - 1) x
+ * (2 * cols - 1) entries serves every gradient pixel and every candidate center. Tables are
+ * immutable and shared across frames, faces and threads.
+ */
+final class DisplacementTable {
+    private static final Map<Integer, DisplacementTable> sCache = new HashMap<>();
+
+    final int rows;
+    final int cols;
+    /** Row stride of {@link #ux} and {@link #uy}, 2 * cols - 1 */
+    final int stride;
+    /** Normalized x of the offset (dx, dy), stored at (dy + rows - 1) * stride + dx + cols - 1 */
+    final double[] ux;
+    /** Normalized y of the offset (dx, dy), same layout as {@link #ux} */
+    final double[] uy;
+
+    private DisplacementTable(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        stride = 2 * cols - 1;
+        final int height = 2 * rows - 1;
+        ux = new double[height * stride];
+        uy = new double[height * stride];
+        for (int j = 0; j < height; ++j) {
+            final double dy = j - (rows - 1);
+            for (int i = 0; i < stride; ++i) {
+                final double dx = i - (cols - 1);
+                if (dx == 0 && dy == 0) {
+                    // The gradient pixel itself is no candidate; a zero vector contributes nothing
+                    continue;
+                }
+                final double magnitude = Math.sqrt((dx * dx) + (dy * dy));
+                ux[j * stride + i] = dx / magnitude;
+                uy[j * stride + i] = dy / magnitude;
+            }
+        }
+    }
+
+    /**
+     * Return the shared table for the given eye shape, building it on first use.
+     */
+    static DisplacementTable get(int rows, int cols) {
+        final int key = (rows << 16) | cols;
+        synchronized (sCache) {
+            DisplacementTable table = sCache.get(key);
+            if (table == null) {
+                table = new DisplacementTable(rows, cols);
+                sCache.put(key, table);
+            }
+            return table;
+        }
+    }
+}
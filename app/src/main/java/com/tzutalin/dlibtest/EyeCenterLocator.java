@@ -0,0 +1,454 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Means-of-gradients pupil locator (Timm & Barth) working on primitive arrays.
+ * <p>
+ * The eye region is copied out of the gray frame into a reused Mat, scaled to
+ * {@code fastEyeWidth} with one native resize and copied back with a single bulk {@code get}.
+ * Gradient, threshold, weight and the center search then run on plain arrays, so the hot loops
+ * never cross JNI.
+ * <p>
+ * Instances keep their scratch buffers between calls and are not thread-safe; a sequential
+ * search allocates nothing once the buffers have grown to the largest eye. A single search can
+ * still use several cores through {@link #setParallelism(ForkJoinPool, int)}, at the cost of a
+ * few fork/join tasks per call. The Mat backed scratch is created on first use so
+ * {@link #locate(byte[], int, int)} runs without the OpenCV native library.
+ */
+public class EyeCenterLocator {
+    private static ForkJoinPool sSharedPool;
+
+    private final int mFastEyeWidth;
+    private final boolean mEnableWeight;
+    private final double mWeightDivisor;
+    private final double mGradientThreshold;
+    private boolean mUseDisplacementTable = true;
+    private ForkJoinPool mPool;
+    private int mParallelThreshold;
+
+    private Mat mUnscaled;
+    private Mat mScaled;
+    private final Size mScaledSize = new Size();
+    private byte[] mEyePixels = new byte[0];
+    private byte[] mPixels = new byte[0];
+    private float[] mGradientX = new float[0];
+    private float[] mGradientY = new float[0];
+    private float[] mMags = new float[0];
+    private int[] mBlurRows = new int[0];
+    private int[] mWeight = new int[0];
+    private double[] mOutSum = new double[0];
+    private int[] mGradientIndex = new int[0];
+
+    // State of the running search, read by the CenterRowsTask workers
+    private DisplacementTable mSearchTable;
+    private int mSearchCols;
+    private int mSearchCount;
+
+    public EyeCenterLocator(int fastEyeWidth, int weightBlurSize, boolean enableWeight,
+                            double weightDivisor, double gradientThreshold) {
+        if (weightBlurSize != 5) {
+            throw new IllegalArgumentException("Only a 5x5 weight blur is supported");
+        }
+        mFastEyeWidth = fastEyeWidth;
+        mEnableWeight = enableWeight;
+        mWeightDivisor = weightDivisor;
+        mGradientThreshold = gradientThreshold;
+    }
+
+    public int getFastEyeWidth() {
+        return mFastEyeWidth;
+    }
+
+    /**
+     * Choose between the cached {@link DisplacementTable} (default) and computing each
+     * normalized displacement with sqrt in the inner loop. Both give identical results.
+     */
+    public void setUseDisplacementTable(boolean useTable) {
+        mUseDisplacementTable = useTable;
+    }
+
+    /**
+     * Find the pupil center of the given eye region.
+     *
+     * @param face      The grayscale face image, row-major
+     * @param faceWidth Columns of face
+     * @param eye       The eye region inside face
+     * @param center    Receives the pupil center relative to the eye region, in unscaled pixels
+     * @return center
+     * @throws IllegalArgumentException if the eye region is empty or not inside face
+     */
+    public Point findEyeCenter(byte[] face, int faceWidth, Rect eye, Point center) {
+        final int width = eye.width;
+        final int height = eye.height;
+        if (width < 1 || height < 1 || eye.x < 0 || eye.y < 0 || eye.x + width > faceWidth
+                || (eye.y + height) * faceWidth > face.length) {
+            throw new IllegalArgumentException("Eye " + eye + " outside of the face image");
+        }
+        if (mScaled == null) {
+            mUnscaled = new Mat();
+            mScaled = new Mat();
+        }
+        // Copy the region out rather than taking a submat, which creates a Mat on every call
+        if (mEyePixels.length < width * height) {
+            mEyePixels = new byte[width * height];
+        }
+        for (int y = 0; y < height; ++y) {
+            System.arraycopy(face, (eye.y + y) * faceWidth + eye.x, mEyePixels, y * width, width);
+        }
+        mUnscaled.create(height, width, CvType.CV_8UC1);
+        // put copies at most the size of the Mat, so a larger buffer is fine
+        mUnscaled.put(0, 0, mEyePixels);
+        Imgproc.resize(mUnscaled, mScaled, scaledSize(height, width));
+
+        final int rows = mScaled.rows();
+        final int cols = mScaled.cols();
+        ensureCapacity(rows * cols);
+        mScaled.get(0, 0, mPixels);
+
+        int maxIndex = locate(mPixels, rows, cols);
+        return unscalePoint(maxIndex % cols, maxIndex / cols, eye, center);
+    }
+
+    /**
+     * Split the center search of eyes with at least minPixels scaled pixels across the given
+     * pool. Smaller eyes, and every eye when pool is null, are searched on the calling thread.
+     *
+     * @param pool      The pool to run on, usually {@link #sharedPool()}
+     * @param minPixels Scaled eye size (rows * cols) from which the search goes parallel
+     */
+    public void setParallelism(ForkJoinPool pool, int minPixels) {
+        mPool = pool;
+        mParallelThreshold = minPixels;
+    }
+
+    /**
+     * @return The process wide pool for pupil searches, one worker per core
+     */
+    public static ForkJoinPool sharedPool() {
+        synchronized (EyeCenterLocator.class) {
+            if (sSharedPool == null) {
+                sSharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            }
+            return sSharedPool;
+        }
+    }
+
+    /**
+     * Run the center search on a scaled, row-major eye image.
+     *
+     * @param pixels Gray values of the eye, rows * cols entries
+     * @param rows   Rows of the eye image, at least 2
+     * @param cols   Columns of the eye image, at least 2
+     * @return The row-major index of the most likely center
+     * @throws IllegalArgumentException if the image is too small to take a gradient of
+     */
+    public int locate(byte[] pixels, int rows, int cols) {
+        if (rows < 2 || cols < 2) {
+            throw new IllegalArgumentException("Eye image must be at least 2x2: " + cols + "x" + rows);
+        }
+        final int n = rows * cols;
+        ensureCapacity(n);
+
+        //-- Find the gradient
+        computeXGradient(pixels, rows, cols, mGradientX);
+        computeYGradient(pixels, rows, cols, mGradientY);
+
+        //-- Normalize and threshold the gradient
+        for (int i = 0; i < n; ++i) {
+            mMags[i] = (float) Math.sqrt((double) mGradientX[i] * mGradientX[i]
+                    + (double) mGradientY[i] * mGradientY[i]);
+        }
+        final double gradientThresh = computeDynamicThreshold(mMags, n, mGradientThreshold);
+        for (int i = 0; i < n; ++i) {
+            final double magnitude = mMags[i];
+            if (magnitude > gradientThresh) {
+                mGradientX[i] = (float) (mGradientX[i] / magnitude);
+                mGradientY[i] = (float) (mGradientY[i] / magnitude);
+            } else {
+                mGradientX[i] = 0.0f;
+                mGradientY[i] = 0.0f;
+            }
+        }
+
+        //-- Create a blurred and inverted image for weighting
+        computeWeight(pixels, rows, cols);
+
+        //-- Run the algorithm!
+        for (int i = 0; i < n; ++i) {
+            mOutSum[i] = 0.0;
+        }
+        int count = 0;
+        for (int i = 0; i < n; ++i) {
+            if (mGradientX[i] != 0.0f || mGradientY[i] != 0.0f) {
+                mGradientIndex[count++] = i;
+            }
+        }
+        mSearchTable = mUseDisplacementTable ? DisplacementTable.get(rows, cols) : null;
+        mSearchCols = cols;
+        mSearchCount = count;
+        if (mPool != null && n >= mParallelThreshold && rows > 1) {
+            // Candidate rows are split into disjoint bands, each task accumulates into its own
+            // rows of mOutSum, so the merge is free and the sums are bit-identical to sequential.
+            final int minRows = Math.max(1, rows / (mPool.getParallelism() * 2));
+            mPool.invoke(new CenterRowsTask(this, 0, rows, minRows));
+        } else {
+            searchCenterRows(0, rows);
+        }
+        mSearchTable = null;
+
+        //-- Find the maximum point, averaged and compared in float as the Mat path did
+        final double scale = 1.0 / n;
+        int maxIndex = 0;
+        float maxVal = (float) (mOutSum[0] * scale);
+        for (int i = 1; i < n; ++i) {
+            final float v = (float) (mOutSum[i] * scale);
+            if (v > maxVal) {
+                maxVal = v;
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+    /**
+     * Accumulate every gradient into the candidate centers of rows [cyStart, cyEnd).
+     */
+    void searchCenterRows(int cyStart, int cyEnd) {
+        final DisplacementTable table = mSearchTable;
+        final int cols = mSearchCols;
+        for (int k = 0; k < mSearchCount; ++k) {
+            final int i = mGradientIndex[k];
+            final double gX = mGradientX[i];
+            final double gY = mGradientY[i];
+            if (table != null) {
+                testPossibleCentersTable(i % cols, i / cols, table, gX, gY, cyStart, cyEnd);
+            } else {
+                testPossibleCenters(i % cols, i / cols, cols, gX, gY, cyStart, cyEnd);
+            }
+        }
+    }
+
+    private void testPossibleCenters(int x, int y, int cols, double gx, double gy, int cyStart, int cyEnd) {
+        // for all possible centers
+        for (int cy = cyStart; cy < cyEnd; ++cy) {
+            final int rowOffset = cy * cols;
+            for (int cx = 0; cx < cols; ++cx) {
+                if (x == cx && y == cy) {
+                    continue;
+                }
+                // create a vector from the possible center to the gradient origin
+                double dx = x - cx;
+                double dy = y - cy;
+                // normalize d
+                final double magnitude = Math.sqrt((dx * dx) + (dy * dy));
+                dx = dx / magnitude;
+                dy = dy / magnitude;
+                double dotProduct = dx * gx + dy * gy;
+                dotProduct = Math.max(0.0, dotProduct);
+                // square and multiply by the weight
+                if (mEnableWeight) {
+                    mOutSum[rowOffset + cx] += dotProduct * dotProduct * (mWeight[rowOffset + cx] / mWeightDivisor);
+                } else {
+                    mOutSum[rowOffset + cx] += dotProduct * dotProduct;
+                }
+            }
+        }
+    }
+
+    private void testPossibleCentersTable(int x, int y, DisplacementTable table, double gx, double gy,
+                                          int cyStart, int cyEnd) {
+        final int rows = table.rows;
+        final int cols = table.cols;
+        final double[] ux = table.ux;
+        final double[] uy = table.uy;
+        for (int cy = cyStart; cy < cyEnd; ++cy) {
+            final int rowOffset = cy * cols;
+            // offset of (x - cx, y - cy) for cx == 0; moving cx right walks the table left
+            final int base = (y - cy + rows - 1) * table.stride + x + cols - 1;
+            for (int cx = 0; cx < cols; ++cx) {
+                double dotProduct = ux[base - cx] * gx + uy[base - cx] * gy;
+                if (dotProduct <= 0.0) {
+                    continue;
+                }
+                if (mEnableWeight) {
+                    mOutSum[rowOffset + cx] += dotProduct * dotProduct * (mWeight[rowOffset + cx] / mWeightDivisor);
+                } else {
+                    mOutSum[rowOffset + cx] += dotProduct * dotProduct;
+                }
+            }
+        }
+    }
+
+    Size scaledSize(int rows, int cols) {
+        float a = (((float) mFastEyeWidth) / cols) * rows;
+        if (a < 2) {
+            a = 2;
+        }
+        mScaledSize.width = mFastEyeWidth;
+        mScaledSize.height = a;
+        return mScaledSize;
+    }
+
+    Point unscalePoint(int x, int y, Rect origSize, Point out) {
+        float ratio = (((float) mFastEyeWidth) / origSize.width);
+        out.x = Math.round(x / ratio);
+        out.y = Math.round(y / ratio);
+        return out;
+    }
+
+    /**
+     * Free the native scratch. The locator may be used again afterwards.
+     */
+    public void release() {
+        if (mScaled != null) {
+            mUnscaled.release();
+            mScaled.release();
+            mUnscaled = null;
+            mScaled = null;
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (mPixels.length < n) {
+            mPixels = new byte[n];
+            mGradientX = new float[n];
+            mGradientY = new float[n];
+            mMags = new float[n];
+            mBlurRows = new int[n];
+            mWeight = new int[n];
+            mOutSum = new double[n];
+            mGradientIndex = new int[n];
+        }
+    }
+
+    private static void computeXGradient(byte[] pixels, int rows, int cols, float[] out) {
+        for (int y = 0; y < rows; ++y) {
+            final int o = y * cols;
+            out[o] = (pixels[o + 1] & 0xff) - (pixels[o] & 0xff);
+            for (int x = 1; x < cols - 1; ++x) {
+                out[o + x] = ((pixels[o + x + 1] & 0xff) - (pixels[o + x - 1] & 0xff)) / 2.0f;
+            }
+            out[o + cols - 1] = (pixels[o + cols - 1] & 0xff) - (pixels[o + cols - 2] & 0xff);
+        }
+    }
+
+    private static void computeYGradient(byte[] pixels, int rows, int cols, float[] out) {
+        for (int x = 0; x < cols; ++x) {
+            out[x] = (pixels[cols + x] & 0xff) - (pixels[x] & 0xff);
+            for (int y = 1; y < rows - 1; ++y) {
+                out[y * cols + x] = ((pixels[(y + 1) * cols + x] & 0xff) - (pixels[(y - 1) * cols + x] & 0xff)) / 2.0f;
+            }
+            out[(rows - 1) * cols + x] = (pixels[(rows - 1) * cols + x] & 0xff) - (pixels[(rows - 2) * cols + x] & 0xff);
+        }
+    }
+
+    /**
+     * Same formula as the former Core.meanStdDev based helper, whose output arguments were
+     * swapped: the mean is divided by sqrt(n) and the standard deviation is added.
+     */
+    private static double computeDynamicThreshold(float[] mags, int n, double stdDevFactor) {
+        double sum = 0.0;
+        for (int i = 0; i < n; ++i) {
+            sum += mags[i];
+        }
+        final double mean = sum / n;
+        double sq = 0.0;
+        for (int i = 0; i < n; ++i) {
+            final double d = mags[i] - mean;
+            sq += d * d;
+        }
+        final double stdDev = Math.sqrt(sq / n);
+        return stdDevFactor * (mean / Math.sqrt(n)) + stdDev;
+    }
+
+    /**
+     * 5x5 Gaussian (the [1 4 6 4 1] kernel OpenCV picks for sigma 0) with reflect-101 borders,
+     * inverted to 255 - blur.
+     */
+    private void computeWeight(byte[] pixels, int rows, int cols) {
+        for (int y = 0; y < rows; ++y) {
+            final int o = y * cols;
+            for (int x = 0; x < cols; ++x) {
+                mBlurRows[o + x] = (pixels[o + reflect101(x - 2, cols)] & 0xff)
+                        + 4 * (pixels[o + reflect101(x - 1, cols)] & 0xff)
+                        + 6 * (pixels[o + x] & 0xff)
+                        + 4 * (pixels[o + reflect101(x + 1, cols)] & 0xff)
+                        + (pixels[o + reflect101(x + 2, cols)] & 0xff);
+            }
+        }
+        for (int y = 0; y < rows; ++y) {
+            final int o = y * cols;
+            final int om2 = reflect101(y - 2, rows) * cols;
+            final int om1 = reflect101(y - 1, rows) * cols;
+            final int op1 = reflect101(y + 1, rows) * cols;
+            final int op2 = reflect101(y + 2, rows) * cols;
+            for (int x = 0; x < cols; ++x) {
+                final int sum = mBlurRows[om2 + x] + 4 * mBlurRows[om1 + x] + 6 * mBlurRows[o + x]
+                        + 4 * mBlurRows[op1 + x] + mBlurRows[op2 + x];
+                mWeight[o + x] = 255 - ((sum + 128) >> 8);
+            }
+        }
+    }
+
+    private static int reflect101(int p, int len) {
+        if (len == 1) {
+            return 0;
+        }
+        while (p < 0 || p >= len) {
+            p = p < 0 ? -p : 2 * len - p - 2;
+        }
+        return p;
+    }
+
+    private static final class CenterRowsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final EyeCenterLocator mLocator;
+        private final int mStart;
+        private final int mEnd;
+        private final int mMinRows;
+
+        CenterRowsTask(EyeCenterLocator locator, int start, int end, int minRows) {
+            mLocator = locator;
+            mStart = start;
+            mEnd = end;
+            mMinRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= mMinRows) {
+                mLocator.searchCenterRows(mStart, mEnd);
+                return;
+            }
+            final int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new CenterRowsTask(mLocator, mStart, mid, mMinRows),
+                    new CenterRowsTask(mLocator, mid, mEnd, mMinRows));
+        }
+    }
+}
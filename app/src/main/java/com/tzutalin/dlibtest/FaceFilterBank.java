@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+/**
+ * Temporal smoothing of a fixed set of values of one face, e.g. its landmark coordinates or
+ * pupil centers, sampled once per frame.
+ * <p>
+ * Every value is a channel filtered on its own, with state in primitive arrays:
+ * <ul>
+ * <li>{@link Type#ONE_EURO}: a low-pass filter whose cutoff rises with the speed of the value,
+ * smoothing a still face strongly while following a moving one with little lag.</li>
+ * <li>{@link Type#KALMAN}: a constant-velocity Kalman filter, position and velocity per channel,
+ * the same model as a 2-state org.opencv.video.KalmanFilter with a white-noise acceleration.</li>
+ * <li>{@link Type#NONE}: values pass through unchanged.</li>
+ * </ul>
+ * The first sample after construction or {@link #reset()} passes through and starts the filter.
+ * Not thread-safe.
+ */
+public class FaceFilterBank {
+    public enum Type {
+        NONE, ONE_EURO, KALMAN
+    }
+
+    // Frames closer together than this, e.g. with equal timestamps, count as this far apart
+    private static final double MIN_DT = 1e-3;
+
+    private final Type mType;
+    private final int mChannels;
+    // One-Euro: last output and its smoothed derivative. Kalman: position and velocity
+    private final double[] mValue;
+    private final double[] mVelocity;
+    // Kalman covariance, symmetric 2x2 per channel
+    private final double[] mP00;
+    private final double[] mP01;
+    private final double[] mP11;
+    private boolean mStarted;
+    private long mLastNs;
+
+    private double mMinCutoff = 1.0;
+    private double mBeta = 0.05;
+    private double mDerivativeCutoff = 1.0;
+    private double mProcessNoise = 300.0;
+    private double mMeasurementNoise = 4.0;
+
+    public FaceFilterBank(Type type, int channels) {
+        mType = type;
+        mChannels = channels;
+        mValue = new double[channels];
+        mVelocity = new double[channels];
+        if (type == Type.KALMAN) {
+            mP00 = new double[channels];
+            mP01 = new double[channels];
+            mP11 = new double[channels];
+        } else {
+            mP00 = null;
+            mP01 = null;
+            mP11 = null;
+        }
+    }
+
+    /**
+     * @param minCutoff        Cutoff in Hz of a still value; lower smooths more
+     * @param beta             Cutoff increase per unit/s of speed; higher lags less
+     * @param derivativeCutoff Cutoff in Hz of the speed estimate
+     */
+    public void setOneEuroParameters(double minCutoff, double beta, double derivativeCutoff) {
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mDerivativeCutoff = derivativeCutoff;
+    }
+
+    /**
+     * @param processNoise     Spectral density of the acceleration, in unit^2/s^3
+     * @param measurementNoise Variance of a sample, in unit^2
+     */
+    public void setKalmanNoise(double processNoise, double measurementNoise) {
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /**
+     * Forget the history, e.g. when the values now belong to another face.
+     */
+    public void reset() {
+        mStarted = false;
+    }
+
+    /**
+     * Filter one sample of every channel in place.
+     *
+     * @param timestampNs Capture time of the sample
+     * @param values      One value per channel, replaced by the filtered values
+     */
+    public void filter(long timestampNs, float[] values) {
+        if (mType == Type.NONE) {
+            return;
+        }
+        if (!mStarted) {
+            for (int i = 0; i < mChannels; i++) {
+                mValue[i] = values[i];
+                mVelocity[i] = 0;
+            }
+            if (mType == Type.KALMAN) {
+                for (int i = 0; i < mChannels; i++) {
+                    mP00[i] = mMeasurementNoise;
+                    mP01[i] = 0;
+                    mP11[i] = mProcessNoise;
+                }
+            }
+            mStarted = true;
+            mLastNs = timestampNs;
+            return;
+        }
+        final double dt = Math.max(MIN_DT, (timestampNs - mLastNs) / 1e9);
+        mLastNs = timestampNs;
+        if (mType == Type.ONE_EURO) {
+            oneEuro(dt, values);
+        } else {
+            kalman(dt, values);
+        }
+    }
+
+    private void oneEuro(double dt, float[] values) {
+        final double derivativeAlpha = alpha(mDerivativeCutoff, dt);
+        for (int i = 0; i < mChannels; i++) {
+            final double previous = mValue[i];
+            final double speed = mVelocity[i] + derivativeAlpha * ((values[i] - previous) / dt - mVelocity[i]);
+            final double value = previous + alpha(mMinCutoff + mBeta * Math.abs(speed), dt) * (values[i] - previous);
+            mVelocity[i] = speed;
+            mValue[i] = value;
+            values[i] = (float) value;
+        }
+    }
+
+    private static double alpha(double cutoff, double dt) {
+        final double tau = 1.0 / (2 * Math.PI * cutoff);
+        return 1.0 / (1.0 + tau / dt);
+    }
+
+    private void kalman(double dt, float[] values) {
+        // Discrete white-noise acceleration model, shared by all channels
+        final double q00 = mProcessNoise * dt * dt * dt / 3;
+        final double q01 = mProcessNoise * dt * dt / 2;
+        final double q11 = mProcessNoise * dt;
+        final double r = mMeasurementNoise;
+        for (int i = 0; i < mChannels; i++) {
+            // Predict: x = F x, P = F P F^T + Q with F = [1 dt; 0 1]
+            final double position = mValue[i] + dt * mVelocity[i];
+            final double p11 = mP11[i] + q11;
+            final double p01 = mP01[i] + dt * mP11[i] + q01;
+            final double p00 = mP00[i] + dt * (2 * mP01[i] + dt * mP11[i]) + q00;
+
+            // Update with the measured position
+            final double innovation = values[i] - position;
+            final double s = p00 + r;
+            final double k0 = p00 / s;
+            final double k1 = p01 / s;
+            mValue[i] = position + k0 * innovation;
+            mVelocity[i] += k1 * innovation;
+            mP00[i] = (1 - k0) * p00;
+            mP01[i] = (1 - k0) * p01;
+            mP11[i] = p11 - k1 * p01;
+            values[i] = (float) mValue[i];
+        }
+    }
+}
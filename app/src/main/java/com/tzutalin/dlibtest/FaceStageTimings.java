@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.Locale;
+
+/**
+ * Durations of the per-face stages after landmark detection.
+ * <p>
+ * When a frame has fewer faces than there are face workers, idle pool threads search both
+ * pupils while the worker solves the head pose, so {@link #faceNs} is bounded below by the
+ * slowest stage, which {@link #criticalStage()} names. Otherwise the worker runs them one after
+ * another and {@link #faceNs} is roughly their sum.
+ */
+public class FaceStageTimings {
+    public long leftEyeNs;
+    public long rightEyeNs;
+    public long poseNs;
+    /** The whole face, i.e. what it cost its worker */
+    public long faceNs;
+    /** Whether the head pose was refined from the previous frame's pose */
+    public boolean poseWarm;
+    /** Head pose solver passes, see {@link HeadPoseEstimator#getLastPasses()} */
+    public int posePasses;
+    /** RMS reprojection error of the head pose in pixels */
+    public double poseErrorPx;
+
+    public void set(FaceStageTimings other) {
+        leftEyeNs = other.leftEyeNs;
+        rightEyeNs = other.rightEyeNs;
+        poseNs = other.poseNs;
+        faceNs = other.faceNs;
+        poseWarm = other.poseWarm;
+        posePasses = other.posePasses;
+        poseErrorPx = other.poseErrorPx;
+    }
+
+    /**
+     * @return The name of the slowest stage
+     */
+    public String criticalStage() {
+        if (poseNs >= leftEyeNs && poseNs >= rightEyeNs) {
+            return "pose";
+        }
+        return leftEyeNs >= rightEyeNs ? "left eye" : "right eye";
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "L %.2f R %.2f pose %.2f face %.2f ms (%s) pose %s x%d err %.2f px",
+                leftEyeNs / 1e6f, rightEyeNs / 1e6f, poseNs / 1e6f, faceNs / 1e6f, criticalStage(),
+                poseWarm ? "warm" : "cold", posePasses, poseErrorPx);
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.Arrays;
+
+/**
+ * Gives the faces of consecutive frames stable identities, so per-face state such as the head
+ * pose or the smoothing filters can follow a face rather than its position in the detection
+ * list.
+ * <p>
+ * Every frame the tracks are matched to the detections greedily: all track and detection pairs
+ * that overlap by at least {@link #setMinIoU(float)}, or whose centers lie close enough, are
+ * scored, sorted once, and taken best first while both sides are free. That is
+ * O(n log n) in the number of candidate pairs, with no allocation. A track predicts its box
+ * from its last motion while it is not seen.
+ * <p>
+ * A detection left over starts a tentative track. It is confirmed after
+ * {@link #setMinHits(int)} matches in a row; an unmatched tentative track dies at once, a
+ * confirmed one only after more than {@link #setMaxMisses(int)} frames in a row without a match.
+ * Track objects come from a fixed pool; {@link Track#getIndex()} is stable for the life of a
+ * track and may index per-face state kept alongside the tracker.
+ * <p>
+ * Not thread-safe.
+ */
+public class FaceTracker {
+    // Pair keys hold the track and detection index in this many bits each
+    private static final int INDEX_BITS = 8;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    private static final double SCORE_SCALE = 1e6;
+
+    /**
+     * One tracked face.
+     */
+    public static final class Track {
+        private final int mIndex;
+        private int mId;
+        private int mLeft;
+        private int mTop;
+        private int mRight;
+        private int mBottom;
+        private float mVelocityX;
+        private float mVelocityY;
+        private int mHits;
+        private int mMisses;
+        private boolean mConfirmed;
+
+        Track(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * @return Unique among all tracks of a tracker, never reused
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * @return Position in the track pool, between 0 and the capacity of the tracker
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return Frames the track was matched, 1 on the frame it was born
+         */
+        public int getHits() {
+            return mHits;
+        }
+
+        /**
+         * @return Whether the track was born on the last update, its per-face state is stale
+         */
+        public boolean isNew() {
+            return mHits == 1;
+        }
+
+        public boolean isConfirmed() {
+            return mConfirmed;
+        }
+
+        public int getLeft() {
+            return mLeft;
+        }
+
+        public int getTop() {
+            return mTop;
+        }
+
+        public int getRight() {
+            return mRight;
+        }
+
+        public int getBottom() {
+            return mBottom;
+        }
+
+        private void start(int id, int[] boxes, int box) {
+            mId = id;
+            mLeft = boxes[box];
+            mTop = boxes[box + 1];
+            mRight = boxes[box + 2];
+            mBottom = boxes[box + 3];
+            mVelocityX = 0;
+            mVelocityY = 0;
+            mHits = 1;
+            mMisses = 0;
+            mConfirmed = false;
+        }
+
+        private void update(int[] boxes, int box) {
+            // Center motion per frame, averaged over the frames since the last match
+            final int frames = mMisses + 1;
+            mVelocityX = ((boxes[box] + boxes[box + 2]) - (mLeft + mRight)) / (2f * frames);
+            mVelocityY = ((boxes[box + 1] + boxes[box + 3]) - (mTop + mBottom)) / (2f * frames);
+            mLeft = boxes[box];
+            mTop = boxes[box + 1];
+            mRight = boxes[box + 2];
+            mBottom = boxes[box + 3];
+            mHits++;
+            mMisses = 0;
+        }
+    }
+
+    private final Track[] mTracks;
+    private final int[] mFree;
+    private int mFreeCount;
+    private final int[] mActive;
+    private int mActiveCount;
+    private final long[] mPairs;
+    private final boolean[] mTrackMatched;
+    private final boolean[] mDetectionMatched;
+    private final int mMaxDetections;
+    private int mNextId = 1;
+    private long mBirths;
+    private long mDeaths;
+
+    private float mMinIoU = 0.2f;
+    private float mMaxCentroidDistance = 0.5f;
+    private int mMinHits = 2;
+    private int mMaxMisses = 5;
+
+    /**
+     * @param capacity      Tracks alive at once, including those not seen for a while
+     * @param maxDetections Detections per frame; more are ignored
+     */
+    public FaceTracker(int capacity, int maxDetections) {
+        if (capacity > INDEX_MASK + 1 || maxDetections > INDEX_MASK + 1) {
+            throw new IllegalArgumentException("At most " + (INDEX_MASK + 1) + " tracks and detections");
+        }
+        if (capacity < maxDetections) {
+            throw new IllegalArgumentException("Fewer tracks than detections");
+        }
+        mTracks = new Track[capacity];
+        mFree = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mTracks[i] = new Track(i);
+            mFree[i] = capacity - 1 - i;
+        }
+        mFreeCount = capacity;
+        mActive = new int[capacity];
+        mPairs = new long[capacity * maxDetections];
+        mTrackMatched = new boolean[capacity];
+        mDetectionMatched = new boolean[maxDetections];
+        mMaxDetections = maxDetections;
+    }
+
+    /**
+     * @param minIoU Intersection over union from which a track and a detection may match
+     */
+    public void setMinIoU(float minIoU) {
+        mMinIoU = minIoU;
+    }
+
+    /**
+     * @param distance Center distance, relative to the larger side of the track box, up to
+     *                 which a track and a detection may match even without overlap
+     */
+    public void setMaxCentroidDistance(float distance) {
+        mMaxCentroidDistance = distance;
+    }
+
+    public void setMinHits(int minHits) {
+        mMinHits = minHits;
+    }
+
+    public void setMaxMisses(int maxMisses) {
+        mMaxMisses = maxMisses;
+    }
+
+    public int getCapacity() {
+        return mTracks.length;
+    }
+
+    /**
+     * Match the detections of a new frame to the tracks.
+     *
+     * @param boxes  left, top, right, bottom of each detection
+     * @param count  Number of detections
+     * @param tracks Receives the track of each detection
+     */
+    public void update(int[] boxes, int count, Track[] tracks) {
+        count = Math.min(count, mMaxDetections);
+        Arrays.fill(mDetectionMatched, 0, count, false);
+        int pairs = 0;
+        for (int a = 0; a < mActiveCount; a++) {
+            final Track track = mTracks[mActive[a]];
+            mTrackMatched[a] = false;
+            for (int d = 0; d < count; d++) {
+                final double score = score(track, boxes, 4 * d);
+                if (!Double.isNaN(score)) {
+                    // Ascending keys put the best score first
+                    final long rank = (long) (Math.max(0, 2 - score) * SCORE_SCALE);
+                    mPairs[pairs++] = (rank << (2 * INDEX_BITS)) | ((long) a << INDEX_BITS) | d;
+                }
+            }
+        }
+        Arrays.sort(mPairs, 0, pairs);
+        for (int p = 0; p < pairs; p++) {
+            final int a = (int) (mPairs[p] >>> INDEX_BITS) & INDEX_MASK;
+            final int d = (int) mPairs[p] & INDEX_MASK;
+            if (mTrackMatched[a] || mDetectionMatched[d]) {
+                continue;
+            }
+            mTrackMatched[a] = true;
+            mDetectionMatched[d] = true;
+            final Track track = mTracks[mActive[a]];
+            track.update(boxes, 4 * d);
+            if (track.mHits >= mMinHits) {
+                track.mConfirmed = true;
+            }
+            tracks[d] = track;
+        }
+
+        // Age the unmatched tracks, compacting the active list in place
+        int kept = 0;
+        for (int a = 0; a < mActiveCount; a++) {
+            final Track track = mTracks[mActive[a]];
+            if (!mTrackMatched[a]) {
+                track.mMisses++;
+                if (!track.mConfirmed || track.mMisses > mMaxMisses) {
+                    retire(track);
+                    continue;
+                }
+            }
+            mActive[kept++] = track.mIndex;
+        }
+        mActiveCount = kept;
+
+        for (int d = 0; d < count; d++) {
+            if (!mDetectionMatched[d]) {
+                final Track track = obtain();
+                track.start(mNextId++, boxes, 4 * d);
+                if (mMinHits <= 1) {
+                    track.mConfirmed = true;
+                }
+                mActive[mActiveCount++] = track.mIndex;
+                mBirths++;
+                tracks[d] = track;
+            }
+        }
+    }
+
+    /**
+     * @return Higher for a better match, NaN if the pair may not match
+     */
+    private double score(Track track, int[] boxes, int box) {
+        // Where the track would be now if it kept moving as it did
+        final float dx = track.mVelocityX * (track.mMisses + 1);
+        final float dy = track.mVelocityY * (track.mMisses + 1);
+        final double left = track.mLeft + dx;
+        final double top = track.mTop + dy;
+        final double right = track.mRight + dx;
+        final double bottom = track.mBottom + dy;
+        final int otherLeft = boxes[box];
+        final int otherTop = boxes[box + 1];
+        final int otherRight = boxes[box + 2];
+        final int otherBottom = boxes[box + 3];
+
+        final double width = Math.min(right, otherRight) - Math.max(left, otherLeft);
+        final double height = Math.min(bottom, otherBottom) - Math.max(top, otherTop);
+        final double intersection = width > 0 && height > 0 ? width * height : 0;
+        final double union = (right - left) * (bottom - top)
+                + (double) (otherRight - otherLeft) * (otherBottom - otherTop) - intersection;
+        final double iou = union > 0 ? intersection / union : 0;
+
+        final double size = Math.max(1, Math.max(right - left, bottom - top));
+        final double cx = (otherLeft + otherRight) / 2.0 - (left + right) / 2;
+        final double cy = (otherTop + otherBottom) / 2.0 - (top + bottom) / 2;
+        final double distance = Math.sqrt(cx * cx + cy * cy) / size;
+        if (iou < mMinIoU && distance > mMaxCentroidDistance) {
+            return Double.NaN;
+        }
+        return iou - distance;
+    }
+
+    private Track obtain() {
+        if (mFreeCount == 0) {
+            // Every pooled track is in use: give up the one unseen the longest
+            int worst = -1;
+            for (int a = 0; a < mActiveCount; a++) {
+                final Track track = mTracks[mActive[a]];
+                if (track.mMisses > 0 && (worst < 0 || track.mMisses > mTracks[mActive[worst]].mMisses)) {
+                    worst = a;
+                }
+            }
+            if (worst < 0) {
+                throw new IllegalStateException("More detections than tracks");
+            }
+            final Track track = mTracks[mActive[worst]];
+            mActive[worst] = mActive[--mActiveCount];
+            retire(track);
+        }
+        return mTracks[mFree[--mFreeCount]];
+    }
+
+    private void retire(Track track) {
+        mFree[mFreeCount++] = track.mIndex;
+        mDeaths++;
+    }
+
+    /**
+     * Drop all tracks, e.g. after the camera was switched.
+     */
+    public void clear() {
+        for (int a = 0; a < mActiveCount; a++) {
+            retire(mTracks[mActive[a]]);
+        }
+        mActiveCount = 0;
+    }
+
+    /**
+     * @return Tracks alive, seen in the last frame or not
+     */
+    public int getActiveCount() {
+        return mActiveCount;
+    }
+
+    public long getBirthCount() {
+        return mBirths;
+    }
+
+    public long getDeathCount() {
+        return mDeaths;
+    }
+}
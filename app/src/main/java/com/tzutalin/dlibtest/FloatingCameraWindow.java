@@ -35,6 +35,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Tzutalin on 2016/5/25
@@ -58,6 +59,18 @@ public class FloatingCameraWindow {
 
     private static final boolean DEBUG = true;
 
+    // Interval of the presented frame rate and present latency updates
+    private static final long STATS_INTERVAL_NS = 1000000000L;
+
+    // A renderer draws into the back buffer while the UI thread shows the front one
+    private final SwapChain<Bitmap> mSwapChain = new SwapChain<>();
+    // Set while mPresentRunnable is posted, so the UI queue holds at most one of it
+    private final AtomicBoolean mPresentPosted = new AtomicBoolean();
+    private final LatencyHistogram mPresentLatency = new LatencyHistogram();
+    // UI thread only
+    private long mStatsStartNs;
+    private int mStatsFrames;
+
     public FloatingCameraWindow(Context context) {
         mContext = context;
         mUIHandler = new Handler(Looper.getMainLooper());
@@ -122,6 +135,7 @@ public class FloatingCameraWindow {
                     mRootView = null;
                 }
                 mUIHandler.removeCallbacksAndMessages(null);
+                mPresentPosted.set(false);
             }
         });
     }
@@ -155,6 +169,75 @@ public class FloatingCameraWindow {
         });
     }
 
+    /**
+     * Get the bitmap to draw the next frame into. It is never on screen, and the window does not
+     * touch it until {@link #presentBackBuffer()}. Meant for a single rendering thread.
+     */
+    public Bitmap lockBackBuffer(int width, int height) {
+        Bitmap back = mSwapChain.getBack();
+        if (back == null || back.getWidth() != width || back.getHeight() != height) {
+            if (back != null) {
+                back.recycle();
+            }
+            back = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mSwapChain.setBack(back);
+        }
+        return back;
+    }
+
+    /**
+     * Show the buffer returned by the last {@link #lockBackBuffer(int, int)}. Never blocks; if
+     * the UI thread has not shown the previous frame yet, that frame is replaced and counted in
+     * {@link #getPresentDropCount()}.
+     */
+    public void presentBackBuffer() {
+        checkInit();
+        mSwapChain.publish(System.nanoTime());
+        // Coalesce: a runnable already posted will pick up this frame as well
+        if (mPresentPosted.compareAndSet(false, true)) {
+            mUIHandler.post(mPresentRunnable);
+        }
+    }
+
+    /**
+     * @return Frames replaced by a newer one before the UI thread could show them
+     */
+    public long getPresentDropCount() {
+        return mSwapChain.getDropCount();
+    }
+
+    /**
+     * @return Time from {@link #presentBackBuffer()} until the UI thread showed the frame
+     */
+    public LatencyHistogram getPresentLatency() {
+        return mPresentLatency;
+    }
+
+    private final Runnable mPresentRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, a frame published from now on posts again rather than being missed
+            mPresentPosted.set(false);
+            final Bitmap front = mSwapChain.consume();
+            if (front == null || mRootView == null) {
+                return;
+            }
+            // The previous front went back to the renderer, but nothing draws it any more once
+            // the view holds the new one, which happens before the UI thread draws again
+            mRootView.setRGBImageView(front);
+            final long nowNs = System.nanoTime();
+            mPresentLatency.record(nowNs - mSwapChain.getFrontStampNs());
+            mStatsFrames++;
+            if (mStatsStartNs == 0) {
+                mStatsStartNs = nowNs;
+            } else if (nowNs - mStatsStartNs >= STATS_INTERVAL_NS) {
+                mRootView.setFPS(mStatsFrames * 1e9f / (nowNs - mStatsStartNs));
+                mStatsStartNs = nowNs;
+                mStatsFrames = 0;
+            }
+        }
+    };
+
     public void setFPS(final float fps) {
         checkInit();
         mUIHandler.post(new Runnable() {
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import com.tzutalin.dlib.FaceResultView;
+
+import org.opencv.core.Rect;
+
+/**
+ * Results of one frame, everything the overlay renderer draws.
+ * <p>
+ * Every {@link FrameSlot} owns one, with room for its maximum number of faces, and fills it in
+ * place once its analysis is complete, so no objects are created per frame. The render stage
+ * reads it while it owns the slot; the pipeline hands the slot from stage to stage, so the
+ * record is never written and read at the same time. The copies make the record independent of
+ * the detection buffer and the analysis records, which the renderer does not touch.
+ */
+final class FrameOverlay {
+    long frameId;
+    long ingestNs;
+    private final Face[] mFaces;
+    private int mFaceCount;
+
+    FrameOverlay(int maxFaces) {
+        mFaces = new Face[maxFaces];
+        for (int i = 0; i < maxFaces; i++) {
+            mFaces[i] = new Face();
+        }
+    }
+
+    /**
+     * Copy the detections and analysis of a slot; faces whose analysis failed are left out.
+     */
+    void set(FrameSlot slot, FaceResultView view) {
+        frameId = slot.frameId;
+        ingestNs = slot.ingestNs;
+        mFaceCount = 0;
+        if (slot.faceCount == 0) {
+            return;
+        }
+        view.wrap(slot.faces);
+        for (int f = 0; f < slot.faceCount; f++) {
+            final FrameSlot.FaceAnalysis analysis = slot.analysis[f];
+            if (analysis.valid) {
+                mFaces[mFaceCount++].set(slot.trackIds[f], view.moveToFace(f), analysis);
+            }
+        }
+    }
+
+    int getFaceCount() {
+        return mFaceCount;
+    }
+
+    Face getFace(int index) {
+        return mFaces[index];
+    }
+
+    /**
+     * One face: track identity, detection box, landmarks, eye regions, pupils and head pose, in
+     * frame pixels.
+     */
+    static final class Face {
+        /** Stable across frames while the face is tracked */
+        int trackId;
+        int left;
+        int top;
+        int right;
+        int bottom;
+        /** Interleaved x, y of the 68 landmarks */
+        final int[] landmarks = new int[2 * FaceResultView.NUM_LANDMARKS];
+        /** left, top, right, bottom */
+        final int[] leftEye = new int[4];
+        final int[] rightEye = new int[4];
+        float leftPupilX;
+        float leftPupilY;
+        float rightPupilX;
+        float rightPupilY;
+        float noseX;
+        float noseY;
+        float lookingX;
+        float lookingY;
+        float cameraX;
+        float cameraY;
+        /** The camera position in the head model coordinates */
+        final float[] cameraPoint = new float[3];
+        double headAngleXz;
+        double headAngleYz;
+        double yaw;
+        double pitch;
+        double roll;
+
+        private void set(int trackId, FaceResultView det, FrameSlot.FaceAnalysis analysis) {
+            this.trackId = trackId;
+            left = det.getLeft();
+            top = det.getTop();
+            right = det.getRight();
+            bottom = det.getBottom();
+            System.arraycopy(det.getBuffer(), det.getLandmarkOffset(), landmarks, 0, landmarks.length);
+            setBox(analysis.leftEye, leftEye);
+            setBox(analysis.rightEye, rightEye);
+            leftPupilX = (float) analysis.leftPupil.x;
+            leftPupilY = (float) analysis.leftPupil.y;
+            rightPupilX = (float) analysis.rightPupil.x;
+            rightPupilY = (float) analysis.rightPupil.y;
+            noseX = (float) analysis.nose.x;
+            noseY = (float) analysis.nose.y;
+            lookingX = (float) analysis.looking.x;
+            lookingY = (float) analysis.looking.y;
+            cameraX = (float) analysis.cameraProjection.x;
+            cameraY = (float) analysis.cameraProjection.y;
+            System.arraycopy(analysis.cameraPoint, 0, cameraPoint, 0, cameraPoint.length);
+            headAngleXz = analysis.headAngleXz;
+            headAngleYz = analysis.headAngleYz;
+            yaw = analysis.yaw;
+            pitch = analysis.pitch;
+            roll = analysis.roll;
+        }
+
+        private static void setBox(Rect rect, int[] box) {
+            box[0] = rect.x;
+            box[1] = rect.y;
+            box[2] = rect.x + rect.width;
+            box[3] = rect.y + rect.height;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chain of stages, each on its own thread, connected by bounded lock-free {@link SpscRing}s.
+ * <p>
+ * Frames are a fixed set of pre-allocated slots. The producer takes a free slot with
+ * {@link #acquire()}, fills it and hands it to the first stage with {@link #submit(Object)};
+ * after the last stage, or when a queue drops it, the slot returns to the free pool. A producer
+ * that finds no free slot drops its input, which is the back pressure on the source. Since
+ * every stage works on a different slot, stage N can process frame K while stage N - 1 is
+ * already on frame K + 1.
+ * <p>
+ * Every ring has one producer, the previous stage, and one consumer, so frames may only be
+ * submitted from a single thread. Slots coming back from any stage share the free pool, a
+ * {@link FrameQueue}.
+ * <p>
+ * Stages are added before {@link #start()}; {@link #stop()} closes the queues and joins the
+ * stage threads, after which the owner may release the slots.
+ */
+public class FramePipeline<T> {
+    /**
+     * One step of the pipeline, always called on the same thread.
+     */
+    public interface Stage<T> {
+        void process(T frame);
+    }
+
+    private final List<T> mSlots;
+    private final FrameQueue<T> mFree;
+    private final int mQueueCapacity;
+    private final FrameQueue.DropPolicy mPolicy;
+
+    private final List<String> mNames = new ArrayList<>();
+    private final List<Stage<T>> mStages = new ArrayList<>();
+    private final List<SpscRing<T>> mQueues = new ArrayList<>();
+    private final List<Thread> mThreads = new ArrayList<>();
+    private AtomicLongArray mProcessed;
+    private AtomicLongArray mErrors;
+    private final AtomicLong mIngestDrops = new AtomicLong();
+    private volatile boolean mStarted;
+
+    /**
+     * @param slots         Every frame buffer the pipeline may use, all initially free
+     * @param queueCapacity Frames that may wait in front of each stage, rounded up to a power of two
+     * @param policy        What a full queue does with another frame
+     */
+    public FramePipeline(List<T> slots, int queueCapacity, FrameQueue.DropPolicy policy) {
+        mSlots = new ArrayList<>(slots);
+        mFree = new FrameQueue<>(slots.size(), FrameQueue.DropPolicy.DROP_NEWEST);
+        for (T slot : slots) {
+            recycle(slot);
+        }
+        mQueueCapacity = queueCapacity;
+        mPolicy = policy;
+    }
+
+    public FramePipeline<T> addStage(String name, Stage<T> stage) {
+        if (mStarted) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        mNames.add(name);
+        mStages.add(stage);
+        mQueues.add(new SpscRing<T>(mQueueCapacity, mPolicy));
+        return this;
+    }
+
+    public void start() {
+        if (mStarted) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        mProcessed = new AtomicLongArray(mStages.size());
+        mErrors = new AtomicLongArray(mStages.size());
+        for (int i = 0; i < mStages.size(); i++) {
+            Thread thread = new Thread(new Worker(i), mNames.get(i));
+            mThreads.add(thread);
+            thread.start();
+        }
+        mStarted = true;
+    }
+
+    /**
+     * Close every queue and wait for the stage threads to finish their current frame.
+     */
+    public void stop() {
+        mFree.close();
+        for (SpscRing<T> queue : mQueues) {
+            queue.close();
+        }
+        boolean interrupted = false;
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A free slot, or null if all are in flight; the input is then counted as dropped
+     */
+    public T acquire() {
+        T slot = mFree.poll();
+        if (slot == null) {
+            mIngestDrops.incrementAndGet();
+        }
+        return slot;
+    }
+
+    /**
+     * Hand a filled slot to the first stage, always from the same producer thread.
+     */
+    public void submit(T slot) {
+        forward(mQueues.get(0), slot);
+    }
+
+    /**
+     * Return a slot to the free pool without processing it.
+     */
+    public void recycle(T slot) {
+        try {
+            mFree.offer(slot);
+        } catch (InterruptedException e) {
+            // DROP_NEWEST never waits
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void forward(SpscRing<T> queue, T slot) {
+        T dropped;
+        try {
+            dropped = queue.offer(slot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped = slot;
+        }
+        if (dropped != null) {
+            recycle(dropped);
+        }
+    }
+
+    public List<T> getSlots() {
+        return mSlots;
+    }
+
+    public int getStageCount() {
+        return mStages.size();
+    }
+
+    public String getStageName(int stage) {
+        return mNames.get(stage);
+    }
+
+    /**
+     * @return Inputs dropped because no slot was free
+     */
+    public long getIngestDropCount() {
+        return mIngestDrops.get();
+    }
+
+    /**
+     * @return Frames dropped by the queue in front of the stage
+     */
+    public long getDropCount(int stage) {
+        return mQueues.get(stage).getDropCount();
+    }
+
+    public long getProcessedCount(int stage) {
+        return mProcessed == null ? 0 : mProcessed.get(stage);
+    }
+
+    /**
+     * @return Frames discarded because the stage threw
+     */
+    public long getErrorCount(int stage) {
+        return mErrors == null ? 0 : mErrors.get(stage);
+    }
+
+    /**
+     * @return Drops of every stage, e.g. "ingest 3 Detect 1 Render 0"
+     */
+    public String getDropSummary() {
+        StringBuilder sb = new StringBuilder("ingest ").append(getIngestDropCount());
+        for (int i = 0; i < mStages.size(); i++) {
+            sb.append(' ').append(mNames.get(i)).append(' ').append(getDropCount(i));
+        }
+        return sb.toString();
+    }
+
+    private final class Worker implements Runnable {
+        private final int mIndex;
+
+        Worker(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            final SpscRing<T> in = mQueues.get(mIndex);
+            final SpscRing<T> out = mIndex + 1 < mQueues.size() ? mQueues.get(mIndex + 1) : null;
+            final Stage<T> stage = mStages.get(mIndex);
+            while (true) {
+                T frame;
+                try {
+                    frame = in.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frame == null) {
+                    return;
+                }
+                try {
+                    stage.process(frame);
+                } catch (RuntimeException e) {
+                    mErrors.incrementAndGet(mIndex);
+                    recycle(frame);
+                    continue;
+                }
+                mProcessed.incrementAndGet(mIndex);
+                if (out != null) {
+                    forward(out, frame);
+                } else {
+                    recycle(frame);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+/**
+ * Bounded FIFO ring guarded by its monitor, safe for any number of producers and consumers.
+ * {@link FramePipeline} keeps its free slots in one, since every stage returns slots to it;
+ * the stage to stage handoff uses the lock-free {@link SpscRing}.
+ * <p>
+ * What happens when a frame is offered to a full queue is decided by its {@link DropPolicy}.
+ * Dropped frames are handed back to the caller so their pre-allocated buffers can be reused.
+ * After {@link #close()} every waiting call returns and nothing more is accepted.
+ */
+public class FrameQueue<T> {
+    public enum DropPolicy {
+        /** Evict the oldest queued frame, so consumers always get the freshest one */
+        DROP_OLDEST,
+        /** Reject the offered frame and keep the queued ones */
+        DROP_NEWEST,
+        /** Wait until the consumer makes room */
+        BLOCK
+    }
+
+    private final Object[] mItems;
+    private final DropPolicy mPolicy;
+    private int mHead;
+    private int mCount;
+    private long mDrops;
+    private boolean mClosed;
+
+    public FrameQueue(int capacity, DropPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        mItems = new Object[capacity];
+        mPolicy = policy;
+    }
+
+    /**
+     * Append a frame, applying the drop policy if the queue is full.
+     *
+     * @return The frame that did not make it into the queue: an evicted one, the offered one,
+     * or null if nothing was dropped
+     */
+    public synchronized T offer(T frame) throws InterruptedException {
+        if (mPolicy == DropPolicy.BLOCK) {
+            while (mCount == mItems.length && !mClosed) {
+                wait();
+            }
+        }
+        if (mClosed) {
+            return frame;
+        }
+        T dropped = null;
+        if (mCount == mItems.length) {
+            mDrops++;
+            if (mPolicy == DropPolicy.DROP_NEWEST) {
+                return frame;
+            }
+            dropped = removeHead();
+        }
+        mItems[(mHead + mCount) % mItems.length] = frame;
+        mCount++;
+        notifyAll();
+        return dropped;
+    }
+
+    /**
+     * Wait for the next frame.
+     *
+     * @return The oldest queued frame, or null once the queue is closed
+     */
+    public synchronized T take() throws InterruptedException {
+        while (mCount == 0 && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            return null;
+        }
+        T frame = removeHead();
+        notifyAll();
+        return frame;
+    }
+
+    /**
+     * @return The oldest queued frame, or null if the queue is empty or closed
+     */
+    public synchronized T poll() {
+        if (mCount == 0 || mClosed) {
+            return null;
+        }
+        T frame = removeHead();
+        notifyAll();
+        return frame;
+    }
+
+    /**
+     * Stop accepting frames and wake every waiting producer and consumer.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public int capacity() {
+        return mItems.length;
+    }
+
+    /**
+     * @return Frames evicted or rejected because the queue was full
+     */
+    public synchronized long getDropCount() {
+        return mDrops;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeHead() {
+        T frame = (T) mItems[mHead];
+        mItems[mHead] = null;
+        mHead = (mHead + 1) % mItems.length;
+        mCount--;
+        return frame;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+
+/**
+ * Per-pipeline arena of native Mats and Java buffers that are reused from frame to frame.
+ * <p>
+ * Callers address objects by a small integer slot of their choosing. An object is created the
+ * first time its slot is requested and handed out again on every later frame; OpenCV output
+ * arguments keep their native buffer as long as size and type do not change.
+ * <p>
+ * The arena counts the objects it creates itself, which shows whether slots are grown or
+ * re-created in steady state. It sees no allocation made elsewhere; FrameAllocationTest
+ * measures those of the per-face hot path on a device.
+ * <p>
+ * Not thread-safe. {@link #release()} frees all native memory and may be followed by further use.
+ */
+public class FrameScratch {
+    private static final int MAX_SLOTS = 16;
+
+    private final Mat[] mMats = new Mat[MAX_SLOTS];
+    private final float[][] mFloats = new float[MAX_SLOTS][];
+    private final double[][] mDoubles = new double[MAX_SLOTS][];
+    private final Point[] mPoints = new Point[MAX_SLOTS];
+
+    private long mAllocations;
+    private long mFrameStart;
+
+    /**
+     * Mark the start of a frame for {@link #getFrameAllocations()}.
+     */
+    public void beginFrame() {
+        mFrameStart = mAllocations;
+    }
+
+    /**
+     * @return Objects this arena created since the last {@link #beginFrame()}
+     */
+    public long getFrameAllocations() {
+        return mAllocations - mFrameStart;
+    }
+
+    /**
+     * @return Objects this arena created since construction
+     */
+    public long getTotalAllocations() {
+        return mAllocations;
+    }
+
+    public Mat mat(int slot) {
+        Mat mat = mMats[slot];
+        if (mat == null) {
+            mat = new Mat();
+            mMats[slot] = mat;
+            mAllocations++;
+        }
+        return mat;
+    }
+
+    public MatOfPoint2f matOfPoint2f(int slot) {
+        Mat mat = mMats[slot];
+        if (mat == null) {
+            mat = new MatOfPoint2f();
+            mMats[slot] = mat;
+            mAllocations++;
+        }
+        return (MatOfPoint2f) mat;
+    }
+
+    public MatOfPoint3f matOfPoint3f(int slot) {
+        Mat mat = mMats[slot];
+        if (mat == null) {
+            mat = new MatOfPoint3f();
+            mMats[slot] = mat;
+            mAllocations++;
+        }
+        return (MatOfPoint3f) mat;
+    }
+
+    public MatOfDouble matOfDouble(int slot) {
+        Mat mat = mMats[slot];
+        if (mat == null) {
+            mat = new MatOfDouble();
+            mMats[slot] = mat;
+            mAllocations++;
+        }
+        return (MatOfDouble) mat;
+    }
+
+    /**
+     * @return A float buffer of at least size entries, contents undefined
+     */
+    public float[] floats(int slot, int size) {
+        float[] buffer = mFloats[slot];
+        if (buffer == null || buffer.length < size) {
+            buffer = new float[size];
+            mFloats[slot] = buffer;
+            mAllocations++;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return A double buffer of at least size entries, contents undefined
+     */
+    public double[] doubles(int slot, int size) {
+        double[] buffer = mDoubles[slot];
+        if (buffer == null || buffer.length < size) {
+            buffer = new double[size];
+            mDoubles[slot] = buffer;
+            mAllocations++;
+        }
+        return buffer;
+    }
+
+    public Point point(int slot) {
+        Point point = mPoints[slot];
+        if (point == null) {
+            point = new Point();
+            mPoints[slot] = point;
+            mAllocations++;
+        }
+        return point;
+    }
+
+    /**
+     * Release every native Mat. Java buffers are dropped as well.
+     */
+    public void release() {
+        for (int i = 0; i < MAX_SLOTS; i++) {
+            if (mMats[i] != null) {
+                mMats[i].release();
+                mMats[i] = null;
+            }
+            mFloats[i] = null;
+            mDoubles[i] = null;
+            mPoints[i] = null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import android.graphics.Bitmap;
+
+import com.tzutalin.dlib.FaceResultView;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Pre-allocated buffers of one frame travelling through the {@link OnGetImageListener}
+ * pipeline. A slot is owned by exactly one stage at a time, so its fields need no locking.
+ * <p>
+ * The slot is also the frame's image context: {@link #gray()}, {@link #grayPixels()} and
+ * {@link #rgba()} convert on first use and hand out the same image for the rest of the frame,
+ * however many faces need it.
+ */
+final class FrameSlot {
+    /** Sampled pixels, ARGB in color mode */
+    final int[] argb;
+    /** Sampled pixels, luma in luma-only mode; see {@link #grayPixels()} */
+    final byte[] grayBytes;
+    /** Whether this frame was ingested as luma only */
+    boolean luma;
+    long frameId;
+    long ingestNs;
+
+    /** The frame as the detector sees it, overlays are drawn into it */
+    final Bitmap bitmap;
+    private final int mSize;
+    private final Mat mGray = new Mat();
+    private final Mat mRgba = new Mat();
+    private boolean mGrayReady;
+    private boolean mRgbaReady;
+    private boolean mGrayBytesReady;
+
+    /** Detection results in the {@link FaceResultView} layout */
+    final int[] faces;
+    int faceCount;
+
+    /** {@link FaceTracker} identity of each face, the first faceCount are valid */
+    final int[] trackIds;
+    /** Per face results of the analysis stage, the first faceCount are valid */
+    final FaceAnalysis[] analysis;
+    /** Objects the FrameScratch arenas of the analysis stage created for this frame */
+    long scratchAllocations;
+    /** The results as the render stage draws them, filled when the analysis stage is done */
+    final FrameOverlay overlay;
+
+    FrameSlot(int size, int maxFaces) {
+        mSize = size;
+        argb = new int[size * size];
+        grayBytes = new byte[size * size];
+        bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        faces = new int[FaceResultView.bufferSize(maxFaces)];
+        trackIds = new int[maxFaces];
+        analysis = new FaceAnalysis[maxFaces];
+        for (int i = 0; i < maxFaces; i++) {
+            analysis[i] = new FaceAnalysis();
+        }
+        overlay = new FrameOverlay(maxFaces);
+    }
+
+    /**
+     * Forget the converted images, called whenever new pixels are sampled into the slot.
+     */
+    void resetImages() {
+        mGrayReady = false;
+        mRgbaReady = false;
+        mGrayBytesReady = false;
+    }
+
+    /**
+     * The first call of a frame is not thread-safe; the analysis stage makes it before it
+     * spreads the faces over the workers.
+     *
+     * @return The frame as 8-bit gray
+     */
+    Mat gray() {
+        if (!mGrayReady) {
+            if (luma) {
+                mGray.create(mSize, mSize, CvType.CV_8UC1);
+                mGray.put(0, 0, grayBytes);
+            } else {
+                Imgproc.cvtColor(rgba(), mGray, Imgproc.COLOR_RGBA2GRAY);
+            }
+            mGrayReady = true;
+        }
+        return mGray;
+    }
+
+    /**
+     * Same thread-safety as {@link #gray()}.
+     *
+     * @return The frame as 8-bit gray, row-major; the sampled luma itself in luma-only mode,
+     * otherwise {@link #grayBytes} filled from {@link #gray()}
+     */
+    byte[] grayPixels() {
+        if (!luma && !mGrayBytesReady) {
+            gray().get(0, 0, grayBytes);
+            mGrayBytesReady = true;
+        }
+        return grayBytes;
+    }
+
+    /**
+     * @return The frame as RGBA, in color mode read back from {@link #bitmap}
+     */
+    Mat rgba() {
+        if (!mRgbaReady) {
+            if (luma) {
+                Imgproc.cvtColor(gray(), mRgba, Imgproc.COLOR_GRAY2RGBA);
+            } else {
+                Utils.bitmapToMat(bitmap, mRgba);
+            }
+            mRgbaReady = true;
+        }
+        return mRgba;
+    }
+
+    void release() {
+        mGray.release();
+        mRgba.release();
+        bitmap.recycle();
+    }
+
+    /**
+     * Eye regions, pupils and head pose of one face, in frame coordinates.
+     */
+    static final class FaceAnalysis {
+        /** False if the pupil search failed, nothing is drawn for the face then */
+        boolean valid;
+        final Rect leftEye = new Rect();
+        final Rect rightEye = new Rect();
+        final Point leftPupil = new Point();
+        final Point rightPupil = new Point();
+        final Point nose = new Point();
+        final Point looking = new Point();
+        final Point cameraProjection = new Point();
+        final float[] cameraPoint = new float[3];
+        double headAngleXz;
+        double headAngleYz;
+        /** Head rotation in radians, see {@link HeadPoseMath#eulerAngles(double[], double[])} */
+        double yaw;
+        double pitch;
+        double roll;
+    }
+}
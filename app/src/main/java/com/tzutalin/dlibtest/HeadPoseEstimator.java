@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * Head pose of one tracked face, solved from the previous frame's pose when there is one.
+ * <p>
+ * On a steady video the pose barely changes between frames, so the iterative solver seeded with
+ * the last rvec/tvec converges in a few steps, and a fast mode fits only the
+ * {@link HeadPoseModel#FAST_POINTS} most stable landmarks. Every warm solve is checked by its
+ * RMS reprojection error over all model points; above {@link #setMaxReprojectionError(double)}
+ * the face is solved cold from all points, as is the first frame of a face.
+ * <p>
+ * OpenCV does not report the iterations of solvePnP, so each solve reports its passes instead:
+ * 1 for an accepted warm or a cold solve, 2 for a warm solve that fell back to a cold one.
+ * <p>
+ * The pose stays in native Mats; one thread at a time, {@link #release()} frees them.
+ */
+public class HeadPoseEstimator {
+    private final Mat mRvec = new Mat(3, 1, CvType.CV_64F);
+    private final Mat mTvec = new Mat(3, 1, CvType.CV_64F);
+    private final MatOfPoint2f mProjected = new MatOfPoint2f();
+    private boolean mHasPose;
+    private boolean mFastMode = true;
+    private double mMaxReprojectionError = 4.0;
+
+    private boolean mLastWarm;
+    private int mLastPasses;
+    private double mLastReprojectionError;
+    private long mWarmSolves;
+    private long mColdSolves;
+    private long mFallbacks;
+
+    /**
+     * Solve the pose for the image points last written by
+     * {@link HeadPoseModel#getImagePoints(int[], int, boolean, int, int)}.
+     *
+     * @return False if the solver failed, the pose is then forgotten
+     */
+    public boolean solve(HeadPoseModel model, Mat cameraMatrix, MatOfDouble distortion) {
+        final MatOfPoint2f imagePoints = model.getImagePoints();
+        mLastWarm = mHasPose;
+        mLastPasses = 0;
+        if (mHasPose) {
+            mLastPasses++;
+            final boolean solved = mFastMode
+                    ? Calib3d.solvePnP(model.getFastModelPoints(), model.getFastImagePoints(), cameraMatrix,
+                    distortion, mRvec, mTvec, true, Calib3d.SOLVEPNP_ITERATIVE)
+                    : Calib3d.solvePnP(model.getModelPoints(), imagePoints, cameraMatrix,
+                    distortion, mRvec, mTvec, true, Calib3d.SOLVEPNP_ITERATIVE);
+            if (solved) {
+                mLastReprojectionError = reprojectionError(model, cameraMatrix, distortion);
+                if (mLastReprojectionError <= mMaxReprojectionError) {
+                    mWarmSolves++;
+                    return true;
+                }
+            }
+            mFallbacks++;
+            mLastWarm = false;
+        }
+        mLastPasses++;
+        mColdSolves++;
+        mHasPose = Calib3d.solvePnP(model.getModelPoints(), imagePoints, cameraMatrix, distortion, mRvec, mTvec);
+        mLastReprojectionError = mHasPose
+                ? reprojectionError(model, cameraMatrix, distortion) : Double.POSITIVE_INFINITY;
+        return mHasPose;
+    }
+
+    private double reprojectionError(HeadPoseModel model, Mat cameraMatrix, MatOfDouble distortion) {
+        Calib3d.projectPoints(model.getModelPoints(), mRvec, mTvec, cameraMatrix, distortion, mProjected);
+        return Core.norm(mProjected, model.getImagePoints(), Core.NORM_L2) / Math.sqrt(HeadPoseModel.NUM_POINTS);
+    }
+
+    /**
+     * Forget the pose, e.g. when the face was lost, so the next solve is a cold one.
+     */
+    public void reset() {
+        mHasPose = false;
+    }
+
+    public boolean hasPose() {
+        return mHasPose;
+    }
+
+    /**
+     * @return Rotation vector of the last solve, valid while {@link #hasPose()}
+     */
+    public Mat getRvec() {
+        return mRvec;
+    }
+
+    /**
+     * @return Translation vector of the last solve, valid while {@link #hasPose()}
+     */
+    public Mat getTvec() {
+        return mTvec;
+    }
+
+    /**
+     * Solve warm frames from the {@link HeadPoseModel#FAST_POINTS} fast points instead of all.
+     */
+    public void setFastMode(boolean fastMode) {
+        mFastMode = fastMode;
+    }
+
+    /**
+     * @param pixels RMS reprojection error above which a warm solve is redone cold
+     */
+    public void setMaxReprojectionError(double pixels) {
+        mMaxReprojectionError = pixels;
+    }
+
+    /**
+     * @return Whether the last solve was an accepted warm one
+     */
+    public boolean isLastWarm() {
+        return mLastWarm;
+    }
+
+    public int getLastPasses() {
+        return mLastPasses;
+    }
+
+    /**
+     * @return RMS reprojection error of the last solve over all model points, in pixels
+     */
+    public double getLastReprojectionError() {
+        return mLastReprojectionError;
+    }
+
+    public long getWarmSolveCount() {
+        return mWarmSolves;
+    }
+
+    public long getColdSolveCount() {
+        return mColdSolves;
+    }
+
+    /**
+     * @return Warm solves rejected for their reprojection error, or failed, and redone cold
+     */
+    public long getFallbackCount() {
+        return mFallbacks;
+    }
+
+    public void release() {
+        mRvec.release();
+        mTvec.release();
+        mProjected.release();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+/**
+ * Closed-form head pose geometry on plain arrays, for what follows solvePnP.
+ * <p>
+ * Rotation matrices are 3x3 row-major double[9]. The camera is a pinhole without distortion,
+ * as in {@link HeadPoseModel}. Nothing here allocates, so the methods are cheap enough to run
+ * for every face of every frame, and they run on the JVM as well.
+ */
+public final class HeadPoseMath {
+    // Below this rotation angle the rotation matrix is taken to first order
+    private static final double SMALL_ANGLE = 1e-12;
+
+    private HeadPoseMath() {
+    }
+
+    /**
+     * Rotation matrix of a Rodrigues rotation vector, the same as Calib3d.Rodrigues.
+     *
+     * @param rvec Rotation axis scaled by the angle in radians
+     * @param r    Receives the rotation matrix
+     */
+    public static void rotationMatrix(double[] rvec, double[] r) {
+        final double x = rvec[0];
+        final double y = rvec[1];
+        final double z = rvec[2];
+        final double theta = Math.sqrt(x * x + y * y + z * z);
+        if (theta < SMALL_ANGLE) {
+            r[0] = 1;
+            r[1] = -z;
+            r[2] = y;
+            r[3] = z;
+            r[4] = 1;
+            r[5] = -x;
+            r[6] = -y;
+            r[7] = x;
+            r[8] = 1;
+            return;
+        }
+        final double kx = x / theta;
+        final double ky = y / theta;
+        final double kz = z / theta;
+        final double c = Math.cos(theta);
+        final double s = Math.sin(theta);
+        final double c1 = 1 - c;
+        r[0] = c + c1 * kx * kx;
+        r[1] = c1 * kx * ky - s * kz;
+        r[2] = c1 * kx * kz + s * ky;
+        r[3] = c1 * ky * kx + s * kz;
+        r[4] = c + c1 * ky * ky;
+        r[5] = c1 * ky * kz - s * kx;
+        r[6] = c1 * kz * kx - s * ky;
+        r[7] = c1 * kz * ky + s * kx;
+        r[8] = c + c1 * kz * kz;
+    }
+
+    /**
+     * Decompose a rotation as R = Rz(roll) * Ry(yaw) * Rx(pitch).
+     *
+     * @param out Receives yaw, pitch and roll in radians
+     */
+    public static void eulerAngles(double[] r, double[] out) {
+        out[0] = Math.atan2(-r[6], Math.sqrt(r[0] * r[0] + r[3] * r[3]));
+        out[1] = Math.atan2(r[7], r[8]);
+        out[2] = Math.atan2(r[3], r[0]);
+    }
+
+    /**
+     * The direction towards the camera in model coordinates, -R * t, scaled so its z is depth.
+     * This is the point the gaze angles are measured against.
+     *
+     * @param out Receives x, y, z
+     */
+    public static void cameraDirection(double[] r, double[] tvec, double depth, double[] out) {
+        final double x = -(r[0] * tvec[0] + r[1] * tvec[1] + r[2] * tvec[2]);
+        final double y = -(r[3] * tvec[0] + r[4] * tvec[1] + r[5] * tvec[2]);
+        final double z = -(r[6] * tvec[0] + r[7] * tvec[1] + r[8] * tvec[2]);
+        final double scale = depth / z;
+        out[0] = x * scale;
+        out[1] = y * scale;
+        out[2] = depth;
+    }
+
+    /**
+     * Project a model point into the image, the same as Calib3d.projectPoints without
+     * distortion.
+     *
+     * @param out Receives the image x, y
+     */
+    public static void project(double[] r, double[] tvec, double fx, double fy, double cx, double cy,
+                               double x, double y, double z, double[] out) {
+        final double px = r[0] * x + r[1] * y + r[2] * z + tvec[0];
+        final double py = r[3] * x + r[4] * y + r[5] * z + tvec[1];
+        final double pz = r[6] * x + r[7] * y + r[8] * z + tvec[2];
+        final double inverse = pz != 0 ? 1 / pz : 1;
+        out[0] = fx * px * inverse + cx;
+        out[1] = fy * py * inverse + cy;
+    }
+
+    /**
+     * @return Angle in the xz plane between the nose axis, the model z axis, and the direction
+     * of point, in [0, pi]
+     */
+    public static double angleXz(double[] point) {
+        return Math.atan2(Math.abs(point[0]), point[2]);
+    }
+
+    /**
+     * @return Angle in the yz plane between the nose axis and the direction of point, in [0, pi]
+     */
+    public static double angleYz(double[] point) {
+        return Math.atan2(Math.abs(point[1]), point[2]);
+    }
+}
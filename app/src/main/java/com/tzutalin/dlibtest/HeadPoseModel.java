@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+import java.util.Arrays;
+
+/**
+ * 3D face model and camera intrinsics for solving the head pose from the 68 dlib landmarks.
+ * <p>
+ * The model points never change and the camera matrix only depends on the frame size, so both
+ * are built once and kept as native Mats. The matching 2D points are written into one reused
+ * MatOfPoint2f with a single bulk put per face.
+ * <p>
+ * Not thread-safe; {@link #release()} frees the native memory.
+ */
+public class HeadPoseModel {
+    /** Landmark index of the nose tip, the origin of the model */
+    public static final int NOSE_TIP = 30;
+
+    /**
+     * The first model points, nose tip, chin, outer eye corners and mouth corners, barely move
+     * with expressions; they alone are enough to refine a pose from a close guess.
+     */
+    public static final int FAST_POINTS = 6;
+
+    /** dlib landmark index for each model point, in model point order */
+    private static final int[] LANDMARK_INDICES = {
+            30, 8, 36, 45, 48, 54,
+            35, 31,
+            27,
+            // face stroke
+            0, 16, 1, 15, 2, 14, 3, 13, 4, 12, 5, 11, 6, 10, 7, 9,
+            // eyes
+            37, 43, 38, 44, 39, 42, 40, 46, 41, 47,
+            // nose
+            28, 29, 32, 33, 34,
+            // lips
+            51, 52, 50, 56, 58, 57
+    };
+
+    /** x, y, z of each model point */
+    private static final float[] MODEL_POINTS = {
+            0.0f, 0.0f, 0.0f,
+            0.0f, -421.4845f, -89.3745f,
+            -247.603f, 122.219f, -237.55f,
+            247.603f, 122.219f, -237.55f,
+            -123.685f, -204.6945f, -120.4095f,
+            123.685f, -204.6945f, -120.4095f,
+
+            63.775f, -68.543f, -76.4535f,
+            -63.775f, -68.543f, -76.4535f,
+
+            0f, 151.374f, -103.856f,
+
+            -372.819f, 177.768f, -487.865f, //0
+            372.819f, 177.768f, -487.865f, //16
+            -368.8095f, 80.0575f, -479.0175f, //1
+            368.8095f, 80.0575f, -479.0175f, //15
+            -353.2915f, -51.7435f, -443.356f, //2
+            353.2915f, -51.7435f, -443.356f, //14
+            -333.1235f, -156.7025f, -407.6445f, //3
+            333.1235f, -156.7025f, -407.6445f, //13
+            -305.707f, -229.4145f, -345.786f, //4
+            305.707f, -229.4145f, -345.786f, //12
+            -252.414f, -310.842f, -276.34f, //5
+            252.414f, -310.842f, -276.34f, //11
+            -175.322f, -369.1215f, -202.9945f, //6
+            175.322f, -369.1215f, -202.9945f, //10
+            -101.583f, -411.735f, -143.4995f, //7
+            101.583f, -411.735f, -143.4995f, //9
+
+            //******************************EYES**************************************
+            -206.45f, 162.5685f, -168.746f, //37
+            206.45f, 162.5685f, -168.746f, //43
+            -145.069f, 162.436f, -168.746f, //38
+            145.069f, 162.436f, -168.746f, //44
+            -84.0115f, 132.2425f, -186.053f, //39
+            84.0115f, 132.2425f, -186.053f, //42
+            -135.093f, 110.194f, -176.4535f, //40
+            135.093f, 110.194f, -176.4535f, //46
+            -194.689f, 99.825f, -188.2525f, //41
+            194.689f, 99.825f, -188.2525f, //47
+
+            //******************************NOSE**************************************
+            0f, 118.2505f, -80.8105f, //28
+            0f, 52.0955f, -40.376f, //29
+            -25.6955f, -80.0655f, -66.1125f, //32
+            -1.043f, -83.0955f, -59.773f, //33
+            25.6955f, -80.0655f, -66.1125f, //34
+
+            //******************************LIPS**************************************
+            2.782f, -162.207f, -55.933f, //51
+            34.8215f, -152.1205f, -60.389f, //52
+            -34.8215f, -152.1205f, -60.389f, //50
+            43.516f, -228.234f, -72.8285f, //56
+            -43.516f, -228.234f, -72.8285f, //58
+            11.231f, -244.0305f, -71.3645f //57
+    };
+
+    public static final int NUM_POINTS = LANDMARK_INDICES.length;
+
+    private MatOfPoint3f mModelPoints;
+    private MatOfPoint3f mFastModelPoints;
+    private MatOfPoint2f mImagePoints;
+    private MatOfPoint2f mFastImagePoints;
+    private boolean mFastImagePointsValid;
+    private final float[] mImagePointBuffer = new float[NUM_POINTS * 2];
+    private final float[] mFastImagePointBuffer = new float[FAST_POINTS * 2];
+
+    private Mat mCameraMatrix;
+    private int mCameraWidth;
+    private int mCameraHeight;
+
+    /**
+     * @return The 3D model points, created on first use and shared afterwards
+     */
+    public MatOfPoint3f getModelPoints() {
+        if (mModelPoints == null) {
+            mModelPoints = new MatOfPoint3f();
+            mModelPoints.create(NUM_POINTS, 1, CvType.CV_32FC3);
+            mModelPoints.put(0, 0, MODEL_POINTS);
+        }
+        return mModelPoints;
+    }
+
+    /**
+     * @return The first {@link #FAST_POINTS} model points
+     */
+    public MatOfPoint3f getFastModelPoints() {
+        if (mFastModelPoints == null) {
+            mFastModelPoints = new MatOfPoint3f();
+            mFastModelPoints.create(FAST_POINTS, 1, CvType.CV_32FC3);
+            mFastModelPoints.put(0, 0, Arrays.copyOf(MODEL_POINTS, FAST_POINTS * 3));
+        }
+        return mFastModelPoints;
+    }
+
+    /**
+     * Pinhole intrinsics for a frame of the given size, rebuilt only when the size changes.
+     * The focal length is the frame width and the principal point the frame center.
+     */
+    public Mat getCameraMatrix(int width, int height) {
+        if (mCameraMatrix == null || mCameraWidth != width || mCameraHeight != height) {
+            if (mCameraMatrix == null) {
+                mCameraMatrix = new Mat(3, 3, CvType.CV_32F);
+            }
+            final double[] intrinsics = new double[4];
+            getIntrinsics(width, height, intrinsics);
+            mCameraMatrix.put(0, 0,
+                    (float) intrinsics[0], 0.0f, (float) intrinsics[2],
+                    0.0f, (float) intrinsics[1], (float) intrinsics[3],
+                    0.0f, 0.0f, 1.0f);
+            mCameraWidth = width;
+            mCameraHeight = height;
+        }
+        return mCameraMatrix;
+    }
+
+    /**
+     * The entries of {@link #getCameraMatrix(int, int)}, for {@link HeadPoseMath}.
+     *
+     * @param out Receives fx, fy, cx, cy
+     */
+    public static void getIntrinsics(int width, int height, double[] out) {
+        out[0] = width;
+        out[1] = width;
+        out[2] = height / 2;
+        out[3] = width / 2;
+    }
+
+    /**
+     * Write the landmarks matching the model points into the reused image point Mat.
+     *
+     * @param landmarks The 68 dlib landmarks as interleaved x, y
+     * @param offset    Index of landmark 0's x in landmarks
+     * @param isCenter  Translate so the nose tip lies in the middle of the frame
+     * @param width     Frame width
+     * @param height    Frame height
+     * @return The image points, valid until the next call
+     */
+    public MatOfPoint2f getImagePoints(int[] landmarks, int offset, boolean isCenter, int width, int height) {
+        float offsetx = 0;
+        float offsety = 0;
+        if (isCenter) {
+            offsetx = width / 2 - landmarks[offset + 2 * NOSE_TIP];
+            offsety = height / 2 - landmarks[offset + 2 * NOSE_TIP + 1];
+        }
+
+        final float[] buffer = mImagePointBuffer;
+        for (int i = 0; i < NUM_POINTS; i++) {
+            final int index = offset + 2 * LANDMARK_INDICES[i];
+            buffer[2 * i] = landmarks[index] + offsetx;
+            buffer[2 * i + 1] = landmarks[index + 1] + offsety;
+        }
+        if (mImagePoints == null) {
+            mImagePoints = new MatOfPoint2f();
+        }
+        mImagePoints.create(NUM_POINTS, 1, CvType.CV_32FC2);
+        mImagePoints.put(0, 0, buffer);
+        mFastImagePointsValid = false;
+        return mImagePoints;
+    }
+
+    /**
+     * @return The image points of the last {@link #getImagePoints(int[], int, boolean, int, int)}
+     */
+    public MatOfPoint2f getImagePoints() {
+        return mImagePoints;
+    }
+
+    /**
+     * @return The first {@link #FAST_POINTS} of the last image points, copied on first use
+     */
+    public MatOfPoint2f getFastImagePoints() {
+        if (mFastImagePoints == null) {
+            mFastImagePoints = new MatOfPoint2f();
+            mFastImagePoints.create(FAST_POINTS, 1, CvType.CV_32FC2);
+        }
+        if (!mFastImagePointsValid) {
+            System.arraycopy(mImagePointBuffer, 0, mFastImagePointBuffer, 0, mFastImagePointBuffer.length);
+            mFastImagePoints.put(0, 0, mFastImagePointBuffer);
+            mFastImagePointsValid = true;
+        }
+        return mFastImagePoints;
+    }
+
+    public void release() {
+        if (mModelPoints != null) {
+            mModelPoints.release();
+            mModelPoints = null;
+        }
+        if (mFastModelPoints != null) {
+            mFastModelPoints.release();
+            mFastModelPoints = null;
+        }
+        if (mImagePoints != null) {
+            mImagePoints.release();
+            mImagePoints = null;
+        }
+        if (mFastImagePoints != null) {
+            mFastImagePoints.release();
+            mFastImagePoints = null;
+        }
+        if (mCameraMatrix != null) {
+            mCameraMatrix.release();
+            mCameraMatrix = null;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Utility class for manipulating images.
@@ -29,6 +30,9 @@ import java.io.FileOutputStream;
 public class ImageUtils {
     private static final String TAG = ImageUtils.class.getSimpleName();
 
+    // Largest value of a channel before the final shift, 2^18 - 1
+    private static final int kMaxChannelValue = 262143;
+
     /**
      * Utility method to compute the allocated size in bytes of a YUV420SP image
      * of the given dimensions.
@@ -114,6 +118,197 @@ public class ImageUtils {
             int uvPixelStride,
             boolean halfSize);
 
+    /**
+     * Java implementation of the native YUV420 to ARGB 8888 conversion, using the same fixed
+     * point BT.601 coefficients. Reads the buffers with absolute gets, their positions are
+     * ignored and left untouched, so the planes of {@link android.media.Image.Plane#getBuffer()}
+     * need no copy to the heap first. There is no native variant for buffers.
+     */
+    public static void convertYUV420ToARGB8888Java(
+            ByteBuffer y,
+            ByteBuffer u,
+            ByteBuffer v,
+            int[] output,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            boolean halfSize) {
+        int out = 0;
+        if (halfSize) {
+            for (int j = 0; j < height / 2; j++) {
+                final int pY = yRowStride * 2 * j;
+                final int pUV = uvRowStride * j;
+                for (int i = 0; i < width / 2; i++) {
+                    final int uvOffset = pUV + i * uvPixelStride;
+                    final int pY2 = pY + 2 * i;
+                    // Average the 2x2 luma block sharing this chroma sample
+                    final int luma = ((y.get(pY2) & 0xff) + (y.get(pY2 + 1) & 0xff)
+                            + (y.get(pY2 + yRowStride) & 0xff) + (y.get(pY2 + yRowStride + 1) & 0xff)) >> 2;
+                    output[out++] = YUV2RGB(luma, u.get(uvOffset) & 0xff, v.get(uvOffset) & 0xff);
+                }
+            }
+            return;
+        }
+        for (int j = 0; j < height; j++) {
+            final int pY = yRowStride * j;
+            final int pUV = uvRowStride * (j >> 1);
+            for (int i = 0; i < width; i++) {
+                final int uvOffset = pUV + (i >> 1) * uvPixelStride;
+                output[out++] = YUV2RGB(y.get(pY + i) & 0xff, u.get(uvOffset) & 0xff, v.get(uvOffset) & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Samples the center square of a YUV420 image straight into a scaled and rotated ARGB
+     * 8888 square, the fused equivalent of converting the whole frame and drawing it through a
+     * crop, scale and rotate Matrix. Only outputSize * outputSize pixels are computed, so most
+     * of a full resolution frame is never read. Chroma comes from the sample nearest to the
+     * luma position.
+     *
+     * @param rotation   Clockwise rotation in degrees, one of 0, 90, 180 and 270
+     * @param bilinear   Interpolate luma bilinearly, otherwise take the nearest sample
+     * @param output     A pre-allocated array of outputSize * outputSize ARGB pixels
+     * @param outputSize Side of the output square
+     */
+    public static void sampleYUV420ToARGB8888(
+            ByteBuffer y,
+            ByteBuffer u,
+            ByteBuffer v,
+            int width,
+            int height,
+            int yRowStride,
+            int uvRowStride,
+            int uvPixelStride,
+            int rotation,
+            boolean bilinear,
+            int[] output,
+            int outputSize) {
+        final int side = Math.min(width, height);
+        final int step = (int) (((long) side << 16) / outputSize);
+        final int originX = ((width - side) / 2 << 16) + step / 2 - (1 << 15);
+        final int originY = ((height - side) / 2 << 16) + step / 2 - (1 << 15);
+        final int maxX = (width - 1) << 16;
+        final int maxY = (height - 1) << 16;
+        int out = 0;
+        for (int dy = 0; dy < outputSize; dy++) {
+            for (int dx = 0; dx < outputSize; dx++) {
+                final int sx = rotatedX(dx, dy, outputSize, rotation);
+                final int sy = rotatedY(dx, dy, outputSize, rotation);
+                final int fx = clamp(originX + sx * step, maxX);
+                final int fy = clamp(originY + sy * step, maxY);
+                final int luma = lumaAt(y, yRowStride, fx, fy, maxX, maxY, bilinear);
+                final int uvOffset = uvRowStride * (nearest(fy) >> 1) + uvPixelStride * (nearest(fx) >> 1);
+                output[out++] = YUV2RGB(luma, u.get(uvOffset) & 0xff, v.get(uvOffset) & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Luma only variant of {@link #sampleYUV420ToARGB8888}, e.g. for a CV_8UC1 Mat.
+     *
+     * @param output A pre-allocated array of outputSize * outputSize gray values
+     */
+    public static void sampleYUV420ToGray(
+            ByteBuffer y,
+            int width,
+            int height,
+            int yRowStride,
+            int rotation,
+            boolean bilinear,
+            byte[] output,
+            int outputSize) {
+        final int side = Math.min(width, height);
+        final int step = (int) (((long) side << 16) / outputSize);
+        final int originX = ((width - side) / 2 << 16) + step / 2 - (1 << 15);
+        final int originY = ((height - side) / 2 << 16) + step / 2 - (1 << 15);
+        final int maxX = (width - 1) << 16;
+        final int maxY = (height - 1) << 16;
+        int out = 0;
+        for (int dy = 0; dy < outputSize; dy++) {
+            for (int dx = 0; dx < outputSize; dx++) {
+                final int fx = clamp(originX + rotatedX(dx, dy, outputSize, rotation) * step, maxX);
+                final int fy = clamp(originY + rotatedY(dx, dy, outputSize, rotation) * step, maxY);
+                output[out++] = (byte) lumaAt(y, yRowStride, fx, fy, maxX, maxY, bilinear);
+            }
+        }
+    }
+
+    // Position in the unrotated square that lands on (dx, dy) after a clockwise rotation
+    private static int rotatedX(int dx, int dy, int size, int rotation) {
+        switch (rotation) {
+            case 90:
+                return dy;
+            case 180:
+                return size - 1 - dx;
+            case 270:
+                return size - 1 - dy;
+            default:
+                return dx;
+        }
+    }
+
+    private static int rotatedY(int dx, int dy, int size, int rotation) {
+        switch (rotation) {
+            case 90:
+                return size - 1 - dx;
+            case 180:
+                return size - 1 - dy;
+            case 270:
+                return dx;
+            default:
+                return dy;
+        }
+    }
+
+    /**
+     * @param fx 16.16 fixed point x, within [0, maxX]
+     * @param fy 16.16 fixed point y, within [0, maxY]
+     */
+    private static int lumaAt(ByteBuffer y, int rowStride, int fx, int fy, int maxX, int maxY, boolean bilinear) {
+        if (!bilinear) {
+            return y.get(nearest(fy) * rowStride + nearest(fx)) & 0xff;
+        }
+        final int x0 = fx >> 16;
+        final int y0 = fy >> 16;
+        final int x1 = fx < maxX ? x0 + 1 : x0;
+        final int y1 = fy < maxY ? y0 + 1 : y0;
+        final int ax = (fx >> 8) & 0xff;
+        final int ay = (fy >> 8) & 0xff;
+        final int row0 = y0 * rowStride;
+        final int row1 = y1 * rowStride;
+        final int top = (y.get(row0 + x0) & 0xff) * (256 - ax) + (y.get(row0 + x1) & 0xff) * ax;
+        final int bottom = (y.get(row1 + x0) & 0xff) * (256 - ax) + (y.get(row1 + x1) & 0xff) * ax;
+        return (top * (256 - ay) + bottom * ay + (1 << 15)) >> 16;
+    }
+
+    private static int nearest(int fixed) {
+        return (fixed + (1 << 15)) >> 16;
+    }
+
+    private static int clamp(int fixed, int max) {
+        return fixed < 0 ? 0 : (fixed > max ? max : fixed);
+    }
+
+    private static int YUV2RGB(int y, int u, int v) {
+        y = (y - 16) < 0 ? 0 : (y - 16);
+        u -= 128;
+        v -= 128;
+
+        final int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+
+        r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
+        g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
+        b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
+
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
     /**
      * Converts YUV420 semi-planar data to RGB 565 data using the supplied width
      * and height. The input and output must already be allocated and non-null.
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power-of-two buckets, bucket i holding samples of
+ * [2^i, 2^(i+1)) microseconds. Any thread may record; percentiles are the upper bound of the
+ * bucket they fall into, so they are accurate to a factor of two, which is enough to compare
+ * pool sizes.
+ */
+public class LatencyHistogram {
+    /** The last bucket also takes everything above 2^BUCKETS microseconds, about 35 minutes */
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    public void record(long durationNs) {
+        final long us = durationNs / 1000;
+        final int bucket = us <= 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us));
+        mCounts.incrementAndGet(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    public long getBucketCount(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    /**
+     * @param fraction Between 0 and 1, e.g. 0.9 for the 90th percentile
+     * @return Upper bound of the bucket holding the percentile in nanoseconds, 0 if empty
+     */
+    public long getPercentileNs(double fraction) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return (1L << (i + 1)) * 1000;
+            }
+        }
+        return (1L << BUCKETS) * 1000;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "p50 %.1f p90 %.1f p99 %.1f ms (%d)",
+                getPercentileNs(0.5) / 1e6f, getPercentileNs(0.9) / 1e6f, getPercentileNs(0.99) / 1e6f,
+                getCount());
+    }
+}
@@ -15,7 +15,6 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
@@ -347,10 +346,9 @@ public class MainActivity extends AppCompatActivity {
             bounds.bottom = (int) (ret.getBottom() * resizeRatio);
             canvas.drawRect(bounds, paint);
             // Get landmark
-            ArrayList<Point> landmarks = ret.getFaceLandmarks();
-            for (Point point : landmarks) {
-                int pointX = (int) (point.x * resizeRatio);
-                int pointY = (int) (point.y * resizeRatio);
+            for (int i = 0; i < ret.getLandmarkCount(); i++) {
+                int pointX = (int) (ret.x(i) * resizeRatio);
+                int pointY = (int) (ret.y(i) * resizeRatio);
                 canvas.drawCircle(pointX, pointY, 2, paint);
             }
         }
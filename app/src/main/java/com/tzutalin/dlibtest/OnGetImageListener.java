@@ -38,10 +38,9 @@ import android.view.Display;
 import android.view.WindowManager;
 
 import com.tzutalin.dlib.Constants;
-import com.tzutalin.dlib.PeopleDet;
-import com.tzutalin.dlib.VisionDetRet;
+import com.tzutalin.dlib.FaceLandmarkDetector;
+import com.tzutalin.dlib.FaceResultView;
 
-import junit.framework.Assert;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.CvType;
@@ -55,11 +54,22 @@ import org.opencv.core.Point3;
 import java.io.File;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Formatter;
 import java.util.List;
+import java.util.Locale;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opencv.android.Utils;
 import org.opencv.core.*;
@@ -90,14 +100,27 @@ public class OnGetImageListener implements OnImageAvailableListener {
 
     private double VECTOR_SIZE = 400.0;
 
-    private int mScreenRotation = 270;
+
+    // FrameScratch slots
+    private static final int SLOT_RVEC = 0;
+    private static final int SLOT_TVEC = 1;
+    private static final int SLOT_ROTATION = 2;
+    private static final int SLOT_INTRINSICS = 3;
+    private static final int SLOT_EULER = 4;
+    private static final int SLOT_PROJECTED = 5;
+    private static final int SLOT_NO_DISTORTION = 6;
+    private static final int SLOT_CAMERA_POINT = 7;
+    private static final int SLOT_NOSE_POINT = 8;
+    private static final int SLOT_LANDMARKS = 9;
+    private static final int SLOT_PUPILS = 10;
+    private static final int SLOT_LEFT_PUPIL = 11;
+    private static final int SLOT_RIGHT_PUPIL = 12;
+
+    // Written on the UI thread, read by the image thread
+    private volatile int mScreenRotation = 270;
 
     private int mPreviewWdith = 0;
     private int mPreviewHeight = 0;
-    private byte[][] mYUVBytes;
-    private int[] mRGBBytes = null;
-    private Bitmap mRGBframeBitmap = null;
-    private Bitmap mCroppedBitmap = null;
 
     private String targetPath;
 
@@ -105,11 +128,18 @@ public class OnGetImageListener implements OnImageAvailableListener {
     private File                   mCascadeFile;
     private File                   mCascadeFileEye;
 
-    private boolean mIsComputing = false;
+    // Luma-only ingestion unless a color preview is requested
+    private volatile boolean mColorOverlay = false;
     private Handler mInferenceHandler;
 
+    // Ingest runs on the image thread, every other stage on its own pipeline thread
+    private volatile FramePipeline<FrameSlot> mPipeline;
+    private volatile AdaptivePreviewController mPreviewController;
+    private long mFrameCounter;
+
     private Context mContext;
-    private PeopleDet mPeopleDet;
+    // Opened by the first frame on the detect stage, loading the model takes seconds
+    private final FaceLandmarkDetector mFaceDetector = new FaceLandmarkDetector();
     private TrasparentTitleView mTransparentTitleView;
     private FloatingCameraWindow mWindow;
     private Paint mFaceLandmardkPaint;
@@ -120,6 +150,53 @@ public class OnGetImageListener implements OnImageAvailableListener {
     final Boolean kEnableWeight = true;
     final double kWeightDivisor = 1.0;
     final double kGradientThreshold = 50.0;
+    // Scaled eyes with at least this many pixels search their centers on all cores
+    final int kParallelEyePixels = 400;
+    // Faces beyond this many per frame are not processed
+    final int kMaxFaces = 8;
+    // Full frame face detection every this many frames, faces are tracked in between
+    final int kDetectInterval = 5;
+    // Frames in flight across all pipeline stages, and frames waiting in front of each stage
+    final int kFrameSlots = 4;
+    final int kQueueCapacity = 1;
+    final FrameQueue.DropPolicy kDropPolicy = FrameQueue.DropPolicy.DROP_OLDEST;
+    // Temporal smoothing of landmarks and pupils; see FaceFilterBank for the parameters
+    final FaceFilterBank.Type kFilterType = FaceFilterBank.Type.ONE_EURO;
+    final double kFilterMinCutoff = 1.0;
+    final double kFilterBeta = 0.05;
+    final double kFilterDerivativeCutoff = 1.0;
+    final double kFilterProcessNoise = 300.0;
+    final double kFilterMeasurementNoise = 4.0;
+    // The text readouts are rebuilt at most this often rather than on every frame
+    final long kReadoutIntervalNs = 500000000L;
+
+    // The analysis stage spreads the faces of a frame over one worker per core
+    private final FaceWorker[] mFaceWorkers = new FaceWorker[Runtime.getRuntime().availableProcessors()];
+    private final Future<?>[] mFaceFutures = new Future<?>[mFaceWorkers.length];
+    private final AtomicInteger mNextFace = new AtomicInteger();
+    private ExecutorService mFaceExecutor;
+    private final FaceStageTimings mLastFaceTimings = new FaceStageTimings();
+    private final LatencyHistogram mFaceHistogram = new LatencyHistogram();
+    private final LatencyHistogram mPoseHistogram = new LatencyHistogram();
+    private final LatencyHistogram mEyeHistogram = new LatencyHistogram();
+    private final LatencyHistogram mAnalyzeHistogram = new LatencyHistogram();
+    // Gives faces identities across frames; tracks not seen for a while stay in the pool too
+    private final FaceTracker mTracker = new FaceTracker(2 * kMaxFaces, kMaxFaces);
+    private final int[] mTrackBoxes = new int[4 * kMaxFaces];
+    // The track of each face of the current frame, set before the workers start
+    private final FaceTracker.Track[] mFrameTracks = new FaceTracker.Track[kMaxFaces];
+    // Head pose, landmark and pupil smoothing of each track, by track pool index
+    private final HeadPoseEstimator[] mPoseEstimators = new HeadPoseEstimator[mTracker.getCapacity()];
+    private final FaceFilterBank[] mLandmarkFilters = new FaceFilterBank[mTracker.getCapacity()];
+    private final FaceFilterBank[] mPupilFilters = new FaceFilterBank[mTracker.getCapacity()];
+    // Only touched by the render stage
+    private final OverlayRenderer mOverlayRenderer = new OverlayRenderer();
+    // Only touched by the analysis stage
+    private final FaceResultView mOverlayView = new FaceResultView();
+    private final FaceStageTimings mRenderTimings = new FaceStageTimings();
+    private final StringBuilder mReadout = new StringBuilder();
+    private final Formatter mReadoutFormatter = new Formatter(mReadout, Locale.US);
+    private long mLastReadoutNs;
 
 
     public void initialize(
@@ -130,8 +207,21 @@ public class OnGetImageListener implements OnImageAvailableListener {
         this.mContext = context;
         this.mTransparentTitleView = scoreView;
         this.mInferenceHandler = handler;
-        mPeopleDet = new PeopleDet();
         mWindow = new FloatingCameraWindow(mContext);
+        updateScreenRotation();
+        mFaceDetector.setDetectionInterval(kDetectInterval);
+        for (int i = 0; i < mFaceWorkers.length; i++) {
+            mFaceWorkers[i] = new FaceWorker();
+        }
+        for (int i = 0; i < mPoseEstimators.length; i++) {
+            mPoseEstimators[i] = new HeadPoseEstimator();
+            mLandmarkFilters[i] = newFilterBank(2 * FaceResultView.NUM_LANDMARKS);
+            mPupilFilters[i] = newFilterBank(4);
+        }
+        // The analysis thread is the first worker, the pool runs the others
+        if (mFaceWorkers.length > 1) {
+            mFaceExecutor = Executors.newFixedThreadPool(mFaceWorkers.length - 1);
+        }
 
         mFaceLandmardkPaint = new Paint();
         mFaceLandmardkPaint.setColor(Color.BLUE);
@@ -143,22 +233,114 @@ public class OnGetImageListener implements OnImageAvailableListener {
             mTransparentTitleView.setText("Copying landmark model to " + targetPath);
             FileUtils.copyFileFromRawToOthers(mContext, R.raw.shape_predictor_68_face_landmarks, targetPath);
         }
+
+        List<FrameSlot> slots = new ArrayList<>(kFrameSlots);
+        for (int i = 0; i < kFrameSlots; i++) {
+            slots.add(new FrameSlot(INPUT_SIZE, kMaxFaces));
+        }
+        FramePipeline<FrameSlot> pipeline = new FramePipeline<>(slots, kQueueCapacity, kDropPolicy);
+        pipeline.addStage("Preprocess", new FramePipeline.Stage<FrameSlot>() {
+            @Override
+            public void process(FrameSlot slot) {
+                preprocess(slot);
+            }
+        }).addStage("Detect", new FramePipeline.Stage<FrameSlot>() {
+            @Override
+            public void process(FrameSlot slot) {
+                detect(slot);
+            }
+        }).addStage("Analyze", new FramePipeline.Stage<FrameSlot>() {
+            @Override
+            public void process(FrameSlot slot) {
+                analyze(slot);
+            }
+        }).addStage("Render", new FramePipeline.Stage<FrameSlot>() {
+            @Override
+            public void process(FrameSlot slot) {
+                render(slot);
+            }
+        });
+        pipeline.start();
+        mPipeline = pipeline;
     }
 
     public void deInitialize() {
         synchronized (OnGetImageListener.this) {
-            if (mPeopleDet != null) {
-                mPeopleDet.deInit();
+            final FramePipeline<FrameSlot> pipeline = mPipeline;
+            mPipeline = null;
+            if (pipeline != null) {
+                // Joins the stage threads, so no stage touches what is released below
+                pipeline.stop();
+                for (FrameSlot slot : pipeline.getSlots()) {
+                    slot.release();
+                }
             }
 
+            mFaceDetector.close();
+
             if (mWindow != null) {
                 mWindow.release();
             }
+
+            boolean workersStopped = true;
+            if (mFaceExecutor != null) {
+                mFaceExecutor.shutdown();
+                try {
+                    // An interrupted analysis stage may have left workers running
+                    if (!mFaceExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                        mFaceExecutor.shutdownNow();
+                        workersStopped = mFaceExecutor.awaitTermination(1, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    mFaceExecutor.shutdownNow();
+                    workersStopped = mFaceExecutor.isTerminated();
+                    Thread.currentThread().interrupt();
+                }
+                mFaceExecutor = null;
+            }
+            if (!workersStopped) {
+                // A worker still uses its Mats, leave them to the finalizers instead
+                Log.w(TAG, "Face workers did not stop, not releasing their native memory");
+            }
+
+            for (int i = 0; i < mFaceWorkers.length; i++) {
+                if (mFaceWorkers[i] != null) {
+                    if (workersStopped) {
+                        mFaceWorkers[i].release();
+                    }
+                    mFaceWorkers[i] = null;
+                }
+            }
+            for (int i = 0; i < mPoseEstimators.length; i++) {
+                if (mPoseEstimators[i] != null) {
+                    if (workersStopped) {
+                        mPoseEstimators[i].release();
+                    }
+                    mPoseEstimators[i] = null;
+                }
+            }
         }
     }
 
-    private void drawResizedBitmap(final Bitmap src, final Bitmap dst) {
+    /**
+     * Copy the stage timings of the most recently processed face.
+     *
+     * @param out Receives left eye, right eye, head pose and whole face durations
+     */
+    public void getLastFaceTimings(FaceStageTimings out) {
+        synchronized (mLastFaceTimings) {
+            out.set(mLastFaceTimings);
+        }
+    }
 
+    /**
+     * Re-read the display orientation. Called once on initialize and again by the owner on
+     * configuration changes, instead of querying the WindowManager for every frame.
+     */
+    public void updateScreenRotation() {
+        if (mContext == null) {
+            return;
+        }
         Display getOrient = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
         int orientation = Configuration.ORIENTATION_UNDEFINED;
         Point point = new Point();
@@ -173,218 +355,6 @@ public class OnGetImageListener implements OnImageAvailableListener {
             orientation = Configuration.ORIENTATION_LANDSCAPE;
             mScreenRotation = 0;
         }
-
-        Assert.assertEquals(dst.getWidth(), dst.getHeight());
-        final float minDim = Math.min(src.getWidth(), src.getHeight());
-
-        final Matrix matrix = new Matrix();
-
-        // We only want the center square out of the original rectangle.
-        final float translateX = -Math.max(0, (src.getWidth() - minDim) / 2);
-        final float translateY = -Math.max(0, (src.getHeight() - minDim) / 2);
-        matrix.preTranslate(translateX, translateY);
-
-        final float scaleFactor = dst.getHeight() / minDim;
-        //matrix.postScale(-1,1);
-        matrix.postScale(scaleFactor, scaleFactor);
-
-        // Rotate around the center if necessary.
-        if (mScreenRotation != 0) {
-            matrix.postTranslate(-dst.getWidth() / 2.0f, -dst.getHeight() / 2.0f);
-            matrix.postRotate(mScreenRotation);
-            matrix.postTranslate(dst.getWidth() / 2.0f, dst.getHeight() / 2.0f);
-        }
-
-
-        final Canvas canvas = new Canvas(dst);
-        //canvas.scale(-1,1);
-        //matrix.preScale(-1,1);
-        canvas.drawBitmap(src, matrix, null);
-    }
-
-
-    public MatOfPoint3f get_3d_model_points()
-    {
-        List<Point3> objectPointsList    = new ArrayList<Point3>(46);
-        objectPointsList.add(new Point3(0.0f, 0.0f, 0.0f));
-        objectPointsList.add(new Point3(0.0f, -421.4845f, -89.3745f));
-        objectPointsList.add(new Point3(-247.603f, 122.219f, -237.55f));
-        objectPointsList.add(new Point3(247.603f, 122.219f, -237.55f));
-        objectPointsList.add(new Point3(-123.685f, -204.6945f, -120.4095f));
-        objectPointsList.add(new Point3(123.685f, -204.6945f, -120.4095f));
-
-        objectPointsList.add(new Point3(63.775f, -68.543f, -76.4535f));
-        objectPointsList.add(new Point3(-63.775f, -68.543f, -76.4535f));
-
-        objectPointsList.add(new Point3(0f, 151.374f, -103.856f));
-
-        objectPointsList.add(new Point3(-372.819f, 177.768f, -487.865f));//0
-        objectPointsList.add(new Point3(372.819f, 177.768f, -487.865f));//16
-
-        objectPointsList.add(new Point3(-368.8095f, 80.0575f, -479.0175f));//1
-        objectPointsList.add(new Point3(368.8095f, 80.0575f, -479.0175f));//15
-
-        objectPointsList.add(new Point3(-353.2915f, -51.7435f, -443.356f));//2
-        objectPointsList.add(new Point3(353.2915f, -51.7435f, -443.356f));//14
-
-        objectPointsList.add(new Point3(-333.1235f, -156.7025f, -407.6445f));//3
-        objectPointsList.add(new Point3(333.1235f, -156.7025f, -407.6445f));//13
-
-        objectPointsList.add(new Point3(-305.707f, -229.4145f, -345.786));//4
-        objectPointsList.add(new Point3(305.707f, -229.4145f, -345.786));//12
-
-        objectPointsList.add(new Point3(-252.414f, -310.842f, -276.34f));//5
-        objectPointsList.add(new Point3(252.414f, -310.842f, -276.34f));//11
-
-        objectPointsList.add(new Point3(-175.322f, -369.1215f, -202.9945f));//6
-        objectPointsList.add(new Point3(175.322f, -369.1215f, -202.9945f));//10
-
-        objectPointsList.add(new Point3(-101.583f, -411.735f, -143.4995f));//7
-        objectPointsList.add(new Point3(101.583f, -411.735f, -143.4995f));//9
-
-        //******************************EYES**************************************
-
-        objectPointsList.add(new Point3(-206.45f, 162.5685f, -168.746f));//37
-        objectPointsList.add(new Point3(206.45f, 162.5685f, -168.746f));//43
-
-        objectPointsList.add(new Point3(-145.069f, 162.436f, -168.746f));//38
-        objectPointsList.add(new Point3(145.069f, 162.436f, -168.746f));//44
-
-        objectPointsList.add(new Point3(-84.0115f, 132.2425f, -186.053f));//39
-        objectPointsList.add(new Point3(84.0115f, 132.2425f, -186.053f));//42
-
-        objectPointsList.add(new Point3(-135.093f, 110.194f, -176.4535f));//40
-        objectPointsList.add(new Point3(135.093f, 110.194f, -176.4535f));//46
-
-        objectPointsList.add(new Point3(-194.689f, 99.825f, -188.2525f));//41
-        objectPointsList.add(new Point3(194.689f, 99.825f, -188.2525f));//47
-
-        //******************************NOSE**************************************
-
-        objectPointsList.add(new Point3(0f, 118.2505f, -80.8105f));//28
-        objectPointsList.add(new Point3(0f, 52.0955f, -40.376f));//29
-        objectPointsList.add(new Point3(-25.6955f, -80.0655f, -66.1125f));//32
-        objectPointsList.add(new Point3(-1.043f, -83.0955f, -59.773f));//33
-        objectPointsList.add(new Point3(25.6955f, -80.0655f, -66.1125f));//34
-
-        //******************************LIPS**************************************
-
-        objectPointsList.add(new Point3(2.782f, -162.207f, -55.933f));//51
-        objectPointsList.add(new Point3(34.8215f, -152.1205f, -60.389f));//52
-        objectPointsList.add(new Point3(-34.8215f, -152.1205f, -60.389f));//50
-        objectPointsList.add(new Point3(43.516f, -228.234f, -72.8285f));//56
-        objectPointsList.add(new Point3(-43.516f, -228.234f, -72.8285f));//58
-        objectPointsList.add(new Point3(11.231f, -244.0305f, -71.3645f));//57
-
-
-        MatOfPoint3f modelPoints = new MatOfPoint3f();
-        modelPoints.fromList(objectPointsList);
-
-        return modelPoints;
-
-    }
-
-    public MatOfPoint2f get_2d_image_points(ArrayList<Point> d, boolean isCenter)
-    {
-        List<org.opencv.core.Point> imagePointsList      = new ArrayList<org.opencv.core.Point>(46);
-        float offsetx = 0;
-        float offsety = 0;
-
-        if (isCenter) {
-            offsetx = mCroppedBitmap.getWidth() / 2 - d.get(30).x;
-            offsety = mCroppedBitmap.getHeight() / 2 - d.get(30).y;
-        }
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(30).x + offsetx, d.get(30).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(8).x + offsetx, d.get(8).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(36).x + offsetx, d.get(36).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(45).x + offsetx, d.get(45).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(48).x + offsetx, d.get(48).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(54).x + offsetx, d.get(54).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(35).x + offsetx, d.get(35).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(31).x + offsetx, d.get(31).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(27).x + offsetx, d.get(27).y + offsety));
-
-        //************************FACE STROKE*************************************
-        imagePointsList.add(new org.opencv.core.Point(d.get(0).x + offsetx, d.get(0).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(16).x + offsetx, d.get(16).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(1).x + offsetx, d.get(1).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(15).x + offsetx, d.get(15).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(2).x + offsetx, d.get(2).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(14).x + offsetx, d.get(14).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(3).x + offsetx, d.get(3).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(13).x + offsetx, d.get(13).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(4).x + offsetx, d.get(4).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(12).x + offsetx, d.get(12).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(5).x + offsetx, d.get(5).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(11).x + offsetx, d.get(11).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(6).x + offsetx, d.get(6).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(10).x + offsetx, d.get(10).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(7).x + offsetx, d.get(7).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(9).x + offsetx, d.get(9).y + offsety));
-
-        //*****************************.y + offsetyES*****************************************
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(37).x + offsetx, d.get(37).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(43).x + offsetx, d.get(43).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(38).x + offsetx, d.get(38).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(44).x + offsetx, d.get(44).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(39).x + offsetx, d.get(39).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(42).x + offsetx, d.get(42).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(40).x + offsetx, d.get(40).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(46).x + offsetx, d.get(46).y + offsety));
-
-        imagePointsList.add(new org.opencv.core.Point(d.get(41).x + offsetx, d.get(41).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(47).x + offsetx, d.get(47).y + offsety));
-
-        //*****************************NOSE*****************************************
-        imagePointsList.add(new org.opencv.core.Point(d.get(28).x + offsetx, d.get(28).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(29).x + offsetx, d.get(29).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(32).x + offsetx, d.get(32).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(33).x + offsetx, d.get(33).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(34).x + offsetx, d.get(34).y + offsety));
-
-        //***************************LIPS******************************************
-        imagePointsList.add(new org.opencv.core.Point(d.get(51).x + offsetx, d.get(51).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(52).x + offsetx, d.get(52).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(50).x + offsetx, d.get(50).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(56).x + offsetx, d.get(56).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(58).x + offsetx, d.get(58).y + offsety));
-        imagePointsList.add(new org.opencv.core.Point(d.get(57).x + offsetx, d.get(57).y + offsety));
-
-        MatOfPoint2f modelPoints = new MatOfPoint2f();
-        modelPoints.fromList(imagePointsList);
-        return modelPoints;
-    }
-
-    Mat get_camera_matrix(float focal_length, Point center)
-    {
-        Mat camera_matrix =  Mat.eye(3, 3, CV_32F);
-
-        camera_matrix.put(0,0,focal_length);
-        camera_matrix.put(0,1,0.0);
-        camera_matrix.put(0,2,center.x);
-
-        camera_matrix.put(1,0,0.0);
-        camera_matrix.put(1,1,focal_length);
-        camera_matrix.put(1,2,center.y);
-
-        camera_matrix.put(2,0,0.0);
-        camera_matrix.put(2,1,0.0);
-        camera_matrix.put(2,2,1.0);
-        return camera_matrix;
     }
 
     public void onlyHeadPoseLandmarks(Canvas canvas, ArrayList<Point> d){
@@ -415,7 +385,9 @@ public class OnGetImageListener implements OnImageAvailableListener {
 
     @Override
     public void onImageAvailable(final ImageReader reader) {
+        final FramePipeline<FrameSlot> pipeline = mPipeline;
         Image image = null;
+        FrameSlot slot = null;
         try {
             image = reader.acquireLatestImage();
 
@@ -423,327 +395,587 @@ public class OnGetImageListener implements OnImageAvailableListener {
                 return;
             }
 
-            // No mutex needed as this method is not reentrant.
-            if (mIsComputing) {
+            // Every slot is still in flight, so the stages are behind and this frame is dropped
+            slot = pipeline == null ? null : pipeline.acquire();
+            if (slot == null) {
                 image.close();
                 return;
             }
-            mIsComputing = true;
 
             Trace.beginSection("imageAvailable");
 
             final Plane[] planes = image.getPlanes();
 
-            // Initialize the storage bitmaps once when the resolution is known.
             if (mPreviewWdith != image.getWidth() || mPreviewHeight != image.getHeight()) {
                 mPreviewWdith = image.getWidth();
                 mPreviewHeight = image.getHeight();
-
                 Log.d(TAG, String.format("Initializing at size %dx%d", mPreviewWdith, mPreviewHeight));
-                mRGBBytes = new int[mPreviewWdith * mPreviewHeight];
-                mRGBframeBitmap = Bitmap.createBitmap(mPreviewWdith, mPreviewHeight, Config.ARGB_8888);
-                mCroppedBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Config.ARGB_8888);
-
-                mYUVBytes = new byte[planes.length][];
-                for (int i = 0; i < planes.length; ++i) {
-                    mYUVBytes[i] = new byte[planes[i].getBuffer().capacity()];
-                }
             }
 
-            for (int i = 0; i < planes.length; ++i) {
-                planes[i].getBuffer().get(mYUVBytes[i]);
+            slot.frameId = mFrameCounter++;
+            slot.ingestNs = System.nanoTime();
+            slot.luma = !mColorOverlay;
+            slot.resetImages();
+            // Crop, scale and rotate while sampling, reading the planes in place
+            if (slot.luma) {
+                ImageUtils.sampleYUV420ToGray(
+                        planes[0].getBuffer(),
+                        mPreviewWdith,
+                        mPreviewHeight,
+                        planes[0].getRowStride(),
+                        mScreenRotation,
+                        true,
+                        slot.grayBytes,
+                        INPUT_SIZE);
+            } else {
+                ImageUtils.sampleYUV420ToARGB8888(
+                        planes[0].getBuffer(),
+                        planes[1].getBuffer(),
+                        planes[2].getBuffer(),
+                        mPreviewWdith,
+                        mPreviewHeight,
+                        planes[0].getRowStride(),
+                        planes[1].getRowStride(),
+                        planes[1].getPixelStride(),
+                        mScreenRotation,
+                        true,
+                        slot.argb,
+                        INPUT_SIZE);
             }
 
-            final int yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-            ImageUtils.convertYUV420ToARGB8888(
-                    mYUVBytes[0],
-                    mYUVBytes[1],
-                    mYUVBytes[2],
-                    mRGBBytes,
-                    mPreviewWdith,
-                    mPreviewHeight,
-                    yRowStride,
-                    uvRowStride,
-                    uvPixelStride,
-                    false);
-
             image.close();
         } catch (final Exception e) {
             if (image != null) {
                 image.close();
             }
+            if (slot != null) {
+                pipeline.recycle(slot);
+            }
             Log.e(TAG, "Exception!", e);
             Trace.endSection();
             return;
         }
 
-        mRGBframeBitmap.setPixels(mRGBBytes, 0, mPreviewWdith, 0, 0, mPreviewWdith, mPreviewHeight);
-        drawResizedBitmap(mRGBframeBitmap, mCroppedBitmap);
-/*
-        Matrix m = new Matrix();
-        m.preScale(-1, 1);
-        Bitmap dst = Bitmap.createBitmap(mCroppedBitmap, 0, 0, mCroppedBitmap.getWidth(), mCroppedBitmap.getHeight(), m, false);
-        dst.setDensity(DisplayMetrics.DENSITY_DEFAULT);
-        mCroppedBitmap = dst;*/
-
-
-
-        mInferenceHandler.post(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        //long startTime = System.currentTimeMillis();
-                        List<VisionDetRet> results;
-                        results = mPeopleDet.detBitmapFace(mCroppedBitmap, targetPath);
-                        //long endTime = System.currentTimeMillis();
-                        //mTransparentTitleView.setText("Time cost: " + String.valueOf((endTime - startTime) / 1000f) + " sec");
-                        // Draw on bitmap
-                        Canvas canvas = new Canvas(mCroppedBitmap);
-                        if (results != null) {
-                            for (final VisionDetRet ret : results) {
-                                float resizeRatio = 1.0f;
-                                org.opencv.core.Rect face = new org.opencv.core.Rect(ret.getLeft(),ret.getTop(),ret.getRight() - ret.getLeft(),ret.getBottom() - ret.getTop());
-                                Mat gray = new Mat (mCroppedBitmap.getWidth(), mCroppedBitmap.getHeight(), CvType.CV_8UC1);
-                                Utils.bitmapToMat(mCroppedBitmap, gray);
-                                Imgproc.cvtColor(gray, gray, Imgproc.COLOR_RGB2GRAY);
-                                /*face.x = Math.max(1,face.x);
-                                face.y = Math.max(1,face.y);
-                                if(face.x + face.width >= gray.width()) {
-                                    face.width = gray.width() - face.x - 1;
-                                }
-                                if(face.y + face.height >= gray.height()) {
-                                    face.height = gray.height() - face.y - 1;
-                                }
-                                face.width = Math.max(1,face.width);
-                                face.height = Math.max(1,face.height);*/
-                                Mat faceROI = gray;
-                                //-- Find Eye Centers
-
-
-                                // Draw landmark
-                                ArrayList<Point> landmarks = ret.getFaceLandmarks();
-                                MatOfPoint3f model_points = get_3d_model_points();
-                                MatOfPoint2f image_points  = get_2d_image_points(landmarks, true);
-                                int focal_length = mCroppedBitmap.getWidth();
-
-                                Mat camera_matrix = get_camera_matrix(focal_length, new Point(mCroppedBitmap.getHeight()/2, mCroppedBitmap.getWidth()/2));
-                                MatOfDouble dist_coeffs = new MatOfDouble(Mat.zeros(4,1, CvType.CV_64FC1));
-
-                                Mat rvec = new Mat();
-                                Mat tvec = new Mat();
-
-                                Calib3d.solvePnP(model_points, image_points, camera_matrix, new MatOfDouble(), rvec, tvec);
-                                Mat Rmat = Mat.eye(3, 3, CV_32F);
-                                Mat Rmat2 = Mat.eye(3, 3, CV_32F);
-
-                                Calib3d.Rodrigues(rvec, Rmat);
-                                Mat ans = Mat.eye(3, 1, CV_32F);
-                                Rmat.convertTo(Rmat2,-1,-1);
-                                Core.gemm(Rmat2,tvec, 1, Mat.eye(3, 3, CV_32F),0,ans, 0);
-                                List<Point3> objectPointsList    = new ArrayList<Point3>(1);
-                                objectPointsList.add(new Point3(0,0,VECTOR_SIZE));
-                                //objectPointsList.add(new Point3(0,500,0));
-                                MatOfPoint3f nose = new MatOfPoint3f();
-                                MatOfPoint3f c3d = new MatOfPoint3f();
-                                nose.fromList(objectPointsList);
-                                List<Point3> objectPointsList2    = new ArrayList<Point3>(1);
-                                double t = ans.get(2,0)[0] / VECTOR_SIZE;
-                                objectPointsList2.add(new Point3((ans.get(0,0)[0]) / t, (ans.get(1,0)[0]) / t, (ans.get(2,0)[0]) / t));
-                                c3d.fromList(objectPointsList2);
-                                MatOfPoint2f nose2 = new MatOfPoint2f();
-                                MatOfPoint2f camera = new MatOfPoint2f();
-
-                                projectPoints(nose,rvec,tvec,camera_matrix,new MatOfDouble(),nose2);
-                                projectPoints(c3d, rvec, tvec, camera_matrix, new MatOfDouble(), camera);
-
-                                int Ltop = (landmarks.get(43).y + landmarks.get(42).y) / 2;
-                                int Lbottom = (landmarks.get(47).y + landmarks.get(42).y) / 2;
-                                int Lleft = (landmarks.get(42).x + landmarks.get(43).x) / 2;
-                                int Lright = (landmarks.get(45).x + landmarks.get(44).x) / 2;
-                                int Lheight = Lbottom - Ltop;
-                                if (Lheight < 1)
-                                    Lheight = 1;
-                                org.opencv.core.Rect leftEyeRegion = new org.opencv.core.Rect(Lleft, Ltop,Lright - Lleft,Lheight );
-                                int Rtop = (landmarks.get(39).y + landmarks.get(38).y) / 2;
-                                int Rbottom = (landmarks.get(39).y + landmarks.get(40).y) / 2;
-                                int Rright = (landmarks.get(39).x + landmarks.get(38).x) / 2;
-                                int Rleft = (landmarks.get(37).x + landmarks.get(36).x) / 2;
-                                int Rheight = Rbottom - Rtop;
-                                if (Rheight < 1)
-                                    Rheight = 1;
-                                org.opencv.core.Rect rightEyeRegion = new org.opencv.core.Rect(Rleft, Rtop,Rright - Rleft, Rheight);
-                                org.opencv.core.Point leftPupil = findEyeCenter(faceROI,leftEyeRegion,"Left Eye");
-                                org.opencv.core.Point rightPupil = findEyeCenter(faceROI,rightEyeRegion,"Right Eye");
-
-
-                                // change eye centers to face coordinates
-                                rightPupil.x += rightEyeRegion.x;
-                                rightPupil.y += rightEyeRegion.y;
-                                leftPupil.x += leftEyeRegion.x;
-                                leftPupil.y += leftEyeRegion.y;
-
-                                /*for (Point point : landmarks) {
-                                    int pointX = (int) (point.x * resizeRatio);
-                                    int pointY = (int) (point.y * resizeRatio);
-
-                                    canvas.drawCircle(pointX, pointY, 1, mFaceLandmardkPaint);
-                                }*/
-                                canvas.drawRect(leftEyeRegion.x,leftEyeRegion.y,leftEyeRegion.x + leftEyeRegion.width,leftEyeRegion.y + leftEyeRegion.height,mFaceLandmardkPaint);
-                                canvas.drawRect(rightEyeRegion.x,rightEyeRegion.y,rightEyeRegion.x + rightEyeRegion.width,rightEyeRegion.y + rightEyeRegion.height,mFaceLandmardkPaint);
-                                //onlyHeadPoseLandmarks(canvas,landmarks);
-
-
-                                Mat im = new Mat();
-                                Utils.bitmapToMat(mCroppedBitmap, im);
-                                org.opencv.core.Point looking_point = nose2.toList().get(0);
-                                org.opencv.core.Point nose_point = image_points.toList().get(0);
-                                org.opencv.core.Point3 camera_point = c3d.toList().get(0);
-                                int cam_x = mCroppedBitmap.getWidth()/2;
-                                int cam_y = mCroppedBitmap.getHeight()/2;
-                                Double dist_nose_look_xz = Math.sqrt(Math.pow(0-0,2)+Math.pow(0-VECTOR_SIZE,2));
-                                Double dist_nose_camera_xz = Math.sqrt(Math.pow(0-camera_point.x,2)+Math.pow(0-camera_point.z,2));
-                                Double dist_look_camera_xz = Math.sqrt(Math.pow(0-camera_point.x,2)+Math.pow(VECTOR_SIZE-camera_point.z,2));
-
-                                Double dist_nose_look_yz = Math.sqrt(Math.pow(0-0,2)+Math.pow(0-VECTOR_SIZE,2));
-                                Double dist_nose_camera_yz = Math.sqrt(Math.pow(0-camera_point.y,2)+Math.pow(0-camera_point.z,2));
-                                Double dist_look_camera_yz = Math.sqrt(Math.pow(0-camera_point.y,2)+Math.pow(VECTOR_SIZE-camera_point.z,2));
-
-                                Double head_angle_xz = Math.acos((Math.pow(dist_look_camera_xz,2)-Math.pow(dist_nose_look_xz,2)-Math.pow(dist_nose_camera_xz,2))/(-2*dist_nose_look_xz*dist_nose_camera_xz));
-                                Double head_angle_yz = Math.acos((Math.pow(dist_look_camera_yz,2)-Math.pow(dist_nose_look_yz,2)-Math.pow(dist_nose_camera_yz,2))/(-2*dist_nose_look_yz*dist_nose_camera_yz));
-
-                                //Double head_angle_y = Math.asin(Math.abs(looking_point.y - nose_point.y)/Math.sqrt(Math.pow(looking_point.x-nose_point.x,2)+Math.pow(looking_point.y-nose_point.y,2)));
-                                //Double head_angle_x = Math.asin(Math.abs(looking_point.x - nose_point.x)/Math.sqrt(Math.pow(looking_point.x-nose_point.x,2)+Math.pow(looking_point.z-nose_point.z,2)));
-                                mTransparentTitleView.setText("head yz: "+String.format("%1$,.2f",head_angle_yz*180/Math.PI)+" head xz: "+String.format("%1$,.2f",head_angle_xz*180/Math.PI)+
-                                        " ("+String.format("%1$,.2f",camera_point.x)+", "+String.format("%1$,.2f",camera_point.y)+", "+String.format("%1$,.2f",camera_point.z)+")");
-                                Imgproc.line(im,nose_point,looking_point,new Scalar(255,0,0),2 );
-                                Imgproc.line(im,nose_point,camera.toList().get(0),new Scalar(0,0,255),2 );
-                                Imgproc.circle(im, rightPupil,3, new Scalar(0,255,0));
-                                Imgproc.circle(im, leftPupil,3, new Scalar(0,255,0));
-                                Utils.matToBitmap(im,mCroppedBitmap);
-                                im.release();
-                            }
-                        }
-
-                        //mCroppedBitmap = flip(mCroppedBitmap,Direction.HORIZONTAL);
-                        mWindow.setRGBBitmap(mCroppedBitmap);
-                        mIsComputing = false;
-                    }
-                });
+        pipeline.submit(slot);
         Trace.endSection();
     }
 
-    Mat scaleToFastSize(final Mat src,Mat dst) {
-        float a = (((float)kFastEyeWidth)/src.cols()) * src.rows();
-        if(a < 2)
-            a = 2;
-        Log.d("size:",new Size(kFastEyeWidth,a).toString());
-        Imgproc.resize(src, dst, new Size(kFastEyeWidth,a));
-        return dst;
+    /**
+     * Choose whether frames are converted to color. Off by default: only the Y plane is read
+     * and the preview shows the grayscale frame the detectors see.
+     */
+    public void setColorOverlay(boolean colorOverlay) {
+        mColorOverlay = colorOverlay;
+    }
+
+    /**
+     * Report the ingest to render latency of every frame to the controller, null to stop.
+     */
+    public void setPreviewController(AdaptivePreviewController controller) {
+        mPreviewController = controller;
     }
 
-    private org.opencv.core.Point findEyeCenter(Mat face, org.opencv.core.Rect eye, String debugWindow) {
-        Log.d("eye:",eye.toString());
-        Log.d("face:",face.toString());
-        Mat eyeROIUnscaled = face.submat(eye);//Not sure if correct
-        Log.d("eye:",eye.toString() + "("+eyeROIUnscaled.cols() + "," + eyeROIUnscaled.rows() + ")" + " (" + eyeROIUnscaled.width() + "," + eyeROIUnscaled.height() + ")");
-        Mat eyeROI = new Mat();
-
-        eyeROI = scaleToFastSize(eyeROIUnscaled, eyeROI);
-        eyeROIUnscaled.release();
-        // draw eye region
-        //rectangle(face,eye,1234);
-        //-- Find the gradient
-        Mat gradientX = computeMatXGradient(eyeROI);
-        Mat gradientY = computeMatXGradient(eyeROI.t()).t();
-        //-- Normalize and threshold the gradient
-        // compute all the magnitudes
-        Mat mags = matrixMagnitude(gradientX, gradientY);
-        //compute the threshold
-        double gradientThresh = computeDynamicThreshold(mags, kGradientThreshold);
-        //double gradientThresh = kGradientThreshold;
-        //double gradientThresh = 0;
-        //normalize
-        for (int y = 0; y < eyeROI.rows(); ++y) {
-            for (int x = 0; x < eyeROI.cols(); ++x) {
-                double gX = gradientX.get(y,x)[0];
-                double gY = gradientY.get(y,x)[0];
-                double magnitude = mags.get(y,x)[0];
-                if (magnitude > gradientThresh) {
-                    gradientX.put(y,x, gX/magnitude);
-                    gradientY.put(y,x, gY/magnitude);
-                } else {
-                    gradientX.put(y,x,0.0);
-                    gradientY.put(y,x,0.0);
+    /**
+     * Pipeline stage: turn the sampled pixels into the detector bitmap.
+     */
+    private void preprocess(FrameSlot slot) {
+        if (slot.luma) {
+            Utils.matToBitmap(slot.rgba(), slot.bitmap);
+        } else {
+            // Gray and RGBA Mats are only made if a face needs them
+            slot.bitmap.setPixels(slot.argb, 0, INPUT_SIZE, 0, 0, INPUT_SIZE, INPUT_SIZE);
+        }
+    }
+
+    /**
+     * Pipeline stage: face detection and landmarks.
+     */
+    private void detect(FrameSlot slot) {
+        slot.faceCount = 0;
+        if (!mFaceDetector.isOpen()) {
+            try {
+                mFaceDetector.open(targetPath);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.e(TAG, "Cannot open face detector", e);
+                return;
+            }
+            mWindow.setMoreInformation(String.format(Locale.US, "model load %.0f ms",
+                    mFaceDetector.getLoadTimeNs() / 1e6f));
+        }
+        slot.faceCount = mFaceDetector.detect(slot.bitmap, slot.faces);
+    }
+
+    /**
+     * Pipeline stage: eye regions, pupils and head pose of every face. Faces are spread over
+     * the face workers, this thread working as the first of them; each result lands in the
+     * analysis record of its face index, so the render order does not depend on scheduling.
+     */
+    private void analyze(FrameSlot slot) {
+        final long start = System.nanoTime();
+        trackFaces(slot);
+        final int workers = Math.min(mFaceWorkers.length, slot.faceCount);
+        if (workers > 0) {
+            // Convert once here, the workers then share the result
+            slot.grayPixels();
+        }
+        mNextFace.set(0);
+        for (int i = 1; i < workers; i++) {
+            mFaceFutures[i] = mFaceExecutor.submit(mFaceWorkers[i].bind(slot));
+        }
+        if (workers > 0) {
+            mFaceWorkers[0].bind(slot).call();
+        }
+        for (int i = 1; i < workers; i++) {
+            try {
+                mFaceFutures[i].get();
+            } catch (InterruptedException e) {
+                // Stopping; deInitialize waits for the workers before releasing them
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Exception!", e);
+            }
+            mFaceFutures[i] = null;
+        }
+        long allocations = 0;
+        for (int i = 0; i < workers; i++) {
+            allocations += mFaceWorkers[i].mScratch.getFrameAllocations();
+        }
+        slot.scratchAllocations = allocations;
+        mAnalyzeHistogram.record(System.nanoTime() - start);
+        slot.overlay.set(slot, mOverlayView);
+    }
+
+    /**
+     * Match the faces of the frame to the tracks of the previous ones. A new track gets its
+     * per-face state reset, since it last belonged to a face that is gone.
+     */
+    private void trackFaces(FrameSlot slot) {
+        final int count = slot.faceCount;
+        mOverlayView.wrap(slot.faces);
+        for (int f = 0; f < count; f++) {
+            mOverlayView.moveToFace(f);
+            mTrackBoxes[4 * f] = mOverlayView.getLeft();
+            mTrackBoxes[4 * f + 1] = mOverlayView.getTop();
+            mTrackBoxes[4 * f + 2] = mOverlayView.getRight();
+            mTrackBoxes[4 * f + 3] = mOverlayView.getBottom();
+        }
+        mTracker.update(mTrackBoxes, count, mFrameTracks);
+        for (int f = 0; f < count; f++) {
+            final FaceTracker.Track track = mFrameTracks[f];
+            slot.trackIds[f] = track.getId();
+            if (track.isNew()) {
+                mPoseEstimators[track.getIndex()].reset();
+                mLandmarkFilters[track.getIndex()].reset();
+                mPupilFilters[track.getIndex()].reset();
+            }
+        }
+    }
+
+    /**
+     * @return Faces tracked now, and tracks started so far
+     */
+    public String getTrackSummary() {
+        return mTracker.getActiveCount() + "/" + mTracker.getBirthCount();
+    }
+
+    /**
+     * Per-face latency of the face workers, to tune their number.
+     */
+    public LatencyHistogram getFaceLatencyHistogram() {
+        return mFaceHistogram;
+    }
+
+    public LatencyHistogram getPoseLatencyHistogram() {
+        return mPoseHistogram;
+    }
+
+    /**
+     * One sample per eye.
+     */
+    public LatencyHistogram getEyeLatencyHistogram() {
+        return mEyeHistogram;
+    }
+
+    /**
+     * Whole analysis stage per frame, all faces.
+     */
+    public LatencyHistogram getAnalyzeLatencyHistogram() {
+        return mAnalyzeHistogram;
+    }
+
+    public int getFaceWorkerCount() {
+        return mFaceWorkers.length;
+    }
+
+    private FaceFilterBank newFilterBank(int channels) {
+        FaceFilterBank bank = new FaceFilterBank(kFilterType, channels);
+        bank.setOneEuroParameters(kFilterMinCutoff, kFilterBeta, kFilterDerivativeCutoff);
+        bank.setKalmanNoise(kFilterProcessNoise, kFilterMeasurementNoise);
+        return bank;
+    }
+
+    /**
+     * @return Warm, cold and fallback head pose solves of all face indices so far. Read across
+     * threads, so possibly a frame behind
+     */
+    public String getPoseSolveSummary() {
+        long warm = 0;
+        long cold = 0;
+        long fallbacks = 0;
+        for (HeadPoseEstimator estimator : mPoseEstimators) {
+            if (estimator != null) {
+                warm += estimator.getWarmSolveCount();
+                cold += estimator.getColdSolveCount();
+                fallbacks += estimator.getFallbackCount();
+            }
+        }
+        return warm + "/" + cold + "/" + fallbacks;
+    }
+
+    /**
+     * Analyzes faces of the current frame until none is left. Every worker owns its scratch
+     * Mats, pose model and eye locator, so workers never share mutable state.
+     */
+    private final class FaceWorker implements Callable<Void> {
+        private final FrameScratch mScratch = new FrameScratch();
+        private final HeadPoseModel mHeadPoseModel = new HeadPoseModel();
+        private final FaceResultView mFaceView = new FaceResultView();
+        // One search per eye, they keep scratch buffers and both may run while the pose is solved
+        private final EyeSearch mLeftEye = new EyeSearch();
+        private final EyeSearch mRightEye = new EyeSearch();
+        private final FaceStageTimings mTimings = new FaceStageTimings();
+        private FrameSlot mSlot;
+
+        FaceWorker bind(FrameSlot slot) {
+            mSlot = slot;
+            return this;
+        }
+
+        @Override
+        public Void call() {
+            final FrameSlot slot = mSlot;
+            mScratch.beginFrame();
+            mFaceView.wrap(slot.faces);
+            int f;
+            while ((f = mNextFace.getAndIncrement()) < slot.faceCount) {
+                try {
+                    analyzeFace(slot, f);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Exception!", e);
                 }
             }
+            return null;
         }
-        mags.release();
-        //imshow(debugWindow,gradientX); //mb needed
-        //-- Create a blurred and inverted image for weighting
-        Mat weight = new Mat();
-        Imgproc.GaussianBlur( eyeROI, weight, new Size( kWeightBlurSize, kWeightBlurSize ), 0, 0 );
-        for (int y = 0; y < weight.rows(); ++y) {
-            for (int x = 0; x < weight.cols(); ++x) {
-                weight.put(y,x,(255 - weight.get(y,x)[0]));
-            }
-        }
-        //imshow(debugWindow,weight);
-        //-- Run the algorithm!
-        Mat outSum = Mat.zeros(eyeROI.rows(),eyeROI.cols(),CV_64F);
-        eyeROI.release();
-        // for each possible gradient location
-        // Note: these loops are reversed from the way the paper does them
-        // it evaluates every possible center for each gradient location instead of
-        // every possible gradient location for every center.
-        for (int y = 0; y < weight.rows(); ++y) {
-            for (int x = 0; x < weight.cols(); ++x) {
-                double gX = gradientX.get(y,x)[0];
-                double gY = gradientY.get(y,x)[0];
-                if (gX == 0.0 && gY == 0.0) {
-                    continue;
+
+        private void analyzeFace(FrameSlot slot, int f) {
+            final FaceResultView ret = mFaceView.moveToFace(f);
+            final FrameSlot.FaceAnalysis analysis = slot.analysis[f];
+            analysis.valid = false;
+            final byte[] gray = slot.grayPixels();
+            //-- Find Eye Centers
+            final long faceStart = System.nanoTime();
+            // The track of the face is handled by this worker alone in this frame
+            final int state = mFrameTracks[f].getIndex();
+            smoothLandmarks(slot, state, ret);
+            int Ltop = (ret.y(43) + ret.y(42)) / 2;
+            int Lbottom = (ret.y(47) + ret.y(42)) / 2;
+            int Lleft = (ret.x(42) + ret.x(43)) / 2;
+            int Lright = (ret.x(45) + ret.x(44)) / 2;
+            int Lheight = Lbottom - Ltop;
+            if (Lheight < 1)
+                Lheight = 1;
+            org.opencv.core.Rect leftEyeRegion = analysis.leftEye;
+            leftEyeRegion.x = Lleft;
+            leftEyeRegion.y = Ltop;
+            leftEyeRegion.width = Lright - Lleft;
+            leftEyeRegion.height = Lheight;
+            int Rtop = (ret.y(39) + ret.y(38)) / 2;
+            int Rbottom = (ret.y(39) + ret.y(40)) / 2;
+            int Rright = (ret.x(39) + ret.x(38)) / 2;
+            int Rleft = (ret.x(37) + ret.x(36)) / 2;
+            int Rheight = Rbottom - Rtop;
+            if (Rheight < 1)
+                Rheight = 1;
+            org.opencv.core.Rect rightEyeRegion = analysis.rightEye;
+            rightEyeRegion.x = Rleft;
+            rightEyeRegion.y = Rtop;
+            rightEyeRegion.width = Rright - Rleft;
+            rightEyeRegion.height = Rheight;
+            // With fewer faces than workers the pool has idle threads, which take the pupil
+            // searches while this worker solves the head pose
+            if (slot.faceCount < mFaceWorkers.length) {
+                mLeftEye.start(gray, leftEyeRegion, mScratch.point(SLOT_LEFT_PUPIL));
+                mRightEye.start(gray, rightEyeRegion, mScratch.point(SLOT_RIGHT_PUPIL));
+            } else {
+                mLeftEye.prepare(gray, leftEyeRegion, mScratch.point(SLOT_LEFT_PUPIL));
+                mRightEye.prepare(gray, rightEyeRegion, mScratch.point(SLOT_RIGHT_PUPIL));
+            }
+
+            final long poseStart = System.nanoTime();
+            MatOfPoint2f image_points = mHeadPoseModel.getImagePoints(ret.getBuffer(), ret.getLandmarkOffset(), true,
+                    INPUT_SIZE, INPUT_SIZE);
+            Mat camera_matrix = mHeadPoseModel.getCameraMatrix(INPUT_SIZE, INPUT_SIZE);
+            MatOfDouble noDistortion = mScratch.matOfDouble(SLOT_NO_DISTORTION);
+
+            final HeadPoseEstimator estimator = mPoseEstimators[state];
+            if (!estimator.solve(mHeadPoseModel, camera_matrix, noDistortion)) {
+                // Joined before returning, the searches write into this worker's scratch
+                mLeftEye.join();
+                mRightEye.join();
+                return;
+            }
+            // Everything after the solve is closed form on the Java side
+            final double[] rvec = mScratch.doubles(SLOT_RVEC, 3);
+            final double[] tvec = mScratch.doubles(SLOT_TVEC, 3);
+            final double[] rotation = mScratch.doubles(SLOT_ROTATION, 9);
+            final double[] intrinsics = mScratch.doubles(SLOT_INTRINSICS, 4);
+            final double[] cameraPoint = mScratch.doubles(SLOT_CAMERA_POINT, 3);
+            final double[] euler = mScratch.doubles(SLOT_EULER, 3);
+            final double[] projected = mScratch.doubles(SLOT_PROJECTED, 2);
+            estimator.getRvec().get(0, 0, rvec);
+            estimator.getTvec().get(0, 0, tvec);
+            mTimings.poseWarm = estimator.isLastWarm();
+            mTimings.posePasses = estimator.getLastPasses();
+            mTimings.poseErrorPx = estimator.getLastReprojectionError();
+            HeadPoseMath.rotationMatrix(rvec, rotation);
+            HeadPoseModel.getIntrinsics(INPUT_SIZE, INPUT_SIZE, intrinsics);
+            HeadPoseMath.cameraDirection(rotation, tvec, VECTOR_SIZE, cameraPoint);
+            float[] camera_point = analysis.cameraPoint;
+            camera_point[0] = (float) cameraPoint[0];
+            camera_point[1] = (float) cameraPoint[1];
+            camera_point[2] = (float) cameraPoint[2];
+            HeadPoseMath.eulerAngles(rotation, euler);
+            analysis.yaw = euler[0];
+            analysis.pitch = euler[1];
+            analysis.roll = euler[2];
+            HeadPoseMath.project(rotation, tvec, intrinsics[0], intrinsics[1], intrinsics[2], intrinsics[3],
+                    0, 0, VECTOR_SIZE, projected);
+            analysis.looking.x = projected[0];
+            analysis.looking.y = projected[1];
+            HeadPoseMath.project(rotation, tvec, intrinsics[0], intrinsics[1], intrinsics[2], intrinsics[3],
+                    cameraPoint[0], cameraPoint[1], cameraPoint[2], projected);
+            analysis.cameraProjection.x = projected[0];
+            analysis.cameraProjection.y = projected[1];
+            analysis.headAngleXz = HeadPoseMath.angleXz(cameraPoint);
+            analysis.headAngleYz = HeadPoseMath.angleYz(cameraPoint);
+            final long poseEnd = System.nanoTime();
+
+            final org.opencv.core.Point leftPupil = mLeftEye.join();
+            final org.opencv.core.Point rightPupil = mRightEye.join();
+            final long faceEnd = System.nanoTime();
+            if (leftPupil == null || rightPupil == null) {
+                return;
+            }
+            mTimings.poseNs = poseEnd - poseStart;
+            mTimings.leftEyeNs = mLeftEye.mDurationNs;
+            mTimings.rightEyeNs = mRightEye.mDurationNs;
+            mTimings.faceNs = faceEnd - faceStart;
+            mFaceHistogram.record(mTimings.faceNs);
+            mPoseHistogram.record(mTimings.poseNs);
+            mEyeHistogram.record(mTimings.leftEyeNs);
+            mEyeHistogram.record(mTimings.rightEyeNs);
+            synchronized (mLastFaceTimings) {
+                mLastFaceTimings.set(mTimings);
+            }
+
+            // change eye centers to face coordinates
+            final float[] pupils = mScratch.floats(SLOT_PUPILS, 4);
+            pupils[0] = (float) (leftPupil.x + leftEyeRegion.x);
+            pupils[1] = (float) (leftPupil.y + leftEyeRegion.y);
+            pupils[2] = (float) (rightPupil.x + rightEyeRegion.x);
+            pupils[3] = (float) (rightPupil.y + rightEyeRegion.y);
+            mPupilFilters[state].filter(slot.ingestNs, pupils);
+            analysis.leftPupil.x = pupils[0];
+            analysis.leftPupil.y = pupils[1];
+            analysis.rightPupil.x = pupils[2];
+            analysis.rightPupil.y = pupils[3];
+
+            copyFirstPoint(image_points, SLOT_NOSE_POINT, analysis.nose);
+            analysis.valid = true;
+        }
+
+        /**
+         * Smooth the landmarks of a face over time, in place in the slot, so the eye regions,
+         * the head pose and the overlay all see the same stable points.
+         */
+        private void smoothLandmarks(FrameSlot slot, int state, FaceResultView ret) {
+            final int[] buffer = ret.getBuffer();
+            final int offset = ret.getLandmarkOffset();
+            final float[] landmarks = mScratch.floats(SLOT_LANDMARKS, 2 * FaceResultView.NUM_LANDMARKS);
+            for (int i = 0; i < landmarks.length; i++) {
+                landmarks[i] = buffer[offset + i];
+            }
+            mLandmarkFilters[state].filter(slot.ingestNs, landmarks);
+            for (int i = 0; i < landmarks.length; i++) {
+                buffer[offset + i] = Math.round(landmarks[i]);
+            }
+        }
+
+        private void copyFirstPoint(MatOfPoint2f points, int slot, org.opencv.core.Point out) {
+            float[] xy = mScratch.floats(slot, 2);
+            points.get(0, 0, xy);
+            out.x = xy[0];
+            out.y = xy[1];
+        }
+
+        void release() {
+            mScratch.release();
+            mHeadPoseModel.release();
+            mLeftEye.mLocator.release();
+            mRightEye.mLocator.release();
+        }
+    }
+
+    /**
+     * The pupil search of one eye of a face, which a face worker hands to an idle pool thread
+     * while it solves the head pose. Whoever claims it first runs it, so the worker runs it
+     * itself when no pool thread got to it, and a search is never left waiting in the queue.
+     * Reused for every face of its worker.
+     */
+    private final class EyeSearch implements Runnable {
+        final EyeCenterLocator mLocator =
+                new EyeCenterLocator(kFastEyeWidth, kWeightBlurSize, kEnableWeight, kWeightDivisor, kGradientThreshold);
+        private final AtomicBoolean mClaimed = new AtomicBoolean(true);
+        private byte[] mGray;
+        private org.opencv.core.Rect mEye;
+        private org.opencv.core.Point mCenter;
+        private RuntimeException mError;
+        private boolean mDone;
+        long mDurationNs;
+
+        EyeSearch() {
+            mLocator.setParallelism(EyeCenterLocator.sharedPool(), kParallelEyePixels);
+        }
+
+        /**
+         * Set up a search for {@link #join()} to run on the calling thread.
+         */
+        void prepare(byte[] gray, org.opencv.core.Rect eye, org.opencv.core.Point center) {
+            mGray = gray;
+            mEye = eye;
+            mCenter = center;
+            mError = null;
+            mDone = false;
+            mClaimed.set(false);
+        }
+
+        /**
+         * Set up a search and offer it to the face pool.
+         */
+        void start(byte[] gray, org.opencv.core.Rect eye, org.opencv.core.Point center) {
+            prepare(gray, eye, center);
+            final ExecutorService executor = mFaceExecutor;
+            if (executor != null) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down, join runs it
                 }
-                testPossibleCentersFormula(x, y, weight, gX, gY, outSum);
-            }
-        }
-        gradientX.release();
-        gradientY.release();
-        // scale all the values down, basically averaging them
-        double numGradients = (weight.rows()*weight.cols());
-        weight.release();
-        Mat out = new Mat();
-        outSum.convertTo(out, CV_32F,1.0/numGradients);
-        outSum.release();
-        //imshow(debugWindow,out);
-        //-- Find the maximum point
-        org.opencv.core.Point maxP;
-        double maxVal;
-        Core.MinMaxLocResult res = Core.minMaxLoc(out);
-        maxVal = res.maxVal;
-        maxP = res.maxLoc;
-/*
-        Mat floodClone = new Mat();
-        //double floodThresh = computeDynamicThreshold(out, 1.5);
-        double floodThresh = maxVal * 0.97;
-        Imgproc.threshold(out, floodClone, floodThresh, 0.0f, THRESH_TOZERO);
-        //Mat mask = floodKillEdges(floodClone);
-        //imshow(debugWindow + " Mask",mask);
-        //imshow(debugWindow,out);
-        // redo max
-        res = Core.minMaxLoc(out, floodClone);
-        out.release();
-        maxVal = res.maxVal;
-        maxP = res.maxLoc;
-*/
-        return unscalePoint(maxP,eye);
+            }
+        }
+
+        @Override
+        public void run() {
+            // A stale offer of an earlier face finds the search claimed and does nothing
+            if (mClaimed.compareAndSet(false, true)) {
+                search();
+            }
+        }
+
+        /**
+         * @return The center in eye coordinates, or null if the search failed or the wait was
+         * interrupted
+         */
+        org.opencv.core.Point join() {
+            if (mClaimed.compareAndSet(false, true)) {
+                search();
+            } else {
+                synchronized (this) {
+                    while (!mDone) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // Stopping; deInitialize waits for the pool before releasing
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                    }
+                }
+            }
+            if (mError != null) {
+                Log.e(TAG, "Exception!", mError);
+                return null;
+            }
+            return mCenter;
+        }
+
+        private void search() {
+            final long start = System.nanoTime();
+            try {
+                mLocator.findEyeCenter(mGray, INPUT_SIZE, mEye, mCenter);
+            } catch (RuntimeException e) {
+                mError = e;
+            }
+            mDurationNs = System.nanoTime() - start;
+            synchronized (this) {
+                mDone = true;
+                notifyAll();
+            }
+        }
     }
 
-    org.opencv.core.Point unscalePoint(org.opencv.core.Point p, org.opencv.core.Rect origSize) {
-        float ratio = (((float)kFastEyeWidth)/origSize.width);
-        int x = (int)Math.round(p.x / ratio);
-        int y = (int)Math.round(p.y / ratio);
-        return new org.opencv.core.Point(x,y);
+    /**
+     * Pipeline stage: draw the overlay record over the frame and show it. Reads nothing of the
+     * slot but its bitmap and {@link FrameSlot#overlay}, so analysis never waits on drawing.
+     */
+    private void render(FrameSlot slot) {
+        final FrameOverlay overlay = slot.overlay;
+        final int faces = overlay.getFaceCount();
+
+        // The window owns the displayed bitmaps, the slot bitmap is only the source
+        mOverlayRenderer.render(slot.bitmap, overlay, mWindow.lockBackBuffer(INPUT_SIZE, INPUT_SIZE));
+        //mCroppedBitmap = flip(mCroppedBitmap,Direction.HORIZONTAL);
+        mWindow.presentBackBuffer();
+        final long now = System.nanoTime();
+        final AdaptivePreviewController controller = mPreviewController;
+        if (controller != null) {
+            controller.onFrameLatency(now - slot.ingestNs);
+        }
+        final FramePipeline<FrameSlot> pipeline = mPipeline;
+        if (faces > 0 && pipeline != null && now - mLastReadoutNs >= kReadoutIntervalNs) {
+            mLastReadoutNs = now;
+            final FrameOverlay.Face face = overlay.getFace(faces - 1);
+            float[] camera_point = face.cameraPoint;
+            //Double head_angle_y = Math.asin(Math.abs(looking_point.y - nose_point.y)/Math.sqrt(Math.pow(looking_point.x-nose_point.x,2)+Math.pow(looking_point.y-nose_point.y,2)));
+            //Double head_angle_x = Math.asin(Math.abs(looking_point.x - nose_point.x)/Math.sqrt(Math.pow(looking_point.x-nose_point.x,2)+Math.pow(looking_point.z-nose_point.z,2)));
+            mReadout.setLength(0);
+            mReadoutFormatter.format("face %d head yz: %,.2f head xz: %,.2f (%,.2f, %,.2f, %,.2f)", face.trackId,
+                    face.headAngleYz * 180 / Math.PI, face.headAngleXz * 180 / Math.PI,
+                    camera_point[0], camera_point[1], camera_point[2]);
+            mTransparentTitleView.setText(mReadout.toString());
+
+            getLastFaceTimings(mRenderTimings);
+            // Detector statistics are read across threads and may be one frame ahead
+            mReadout.setLength(0);
+            mReadoutFormatter.format("detect %.2f ms (avg %.2f, load %.0f, det/track/lost %d/%d/%d, scan %.0f%%) ",
+                    mFaceDetector.getLastDetectTimeNs() / 1e6f, mFaceDetector.getAverageDetectTimeNs() / 1e6f,
+                    mFaceDetector.getLoadTimeNs() / 1e6f, mFaceDetector.getDetectFrameCount(),
+                    mFaceDetector.getTrackFrameCount(), mFaceDetector.getTrackLossCount(),
+                    mFaceDetector.getAverageScannedArea() * 100);
+            mReadout.append(mRenderTimings).append(" scratch new ").append(slot.scratchAllocations)
+                    .append(" drops ").append(pipeline.getDropSummary())
+                    .append(" faces/").append(mFaceWorkers.length).append(' ').append(mFaceHistogram)
+                    .append(" pose warm/cold/fallback ").append(getPoseSolveSummary())
+                    .append(" tracks/born ").append(getTrackSummary())
+                    .append(" present drops ").append(mWindow.getPresentDropCount()).append(' ')
+                    .append(mWindow.getPresentLatency());
+            if (controller != null) {
+                mReadoutFormatter.format(" preview %s (%.0f ms)", controller.getLevel(),
+                        controller.getAverageLatencyNs() / 1e6f);
+            }
+            mWindow.setMoreInformation(mReadout.toString());
+        }
     }
 
     Boolean inMat(org.opencv.core.Point p,int rows,int cols) {
@@ -790,67 +1022,4 @@ public class OnGetImageListener implements OnImageAvailableListener {
         }
         return mask;
     }
-    void testPossibleCentersFormula(int x, int y, Mat weight,double gx, double gy, Mat out) {
-        // for all possible centers
-        for (int cy = 0; cy < out.rows(); ++cy) {
-            for (int cx = 0; cx < out.cols(); ++cx) {
-                if (x == cx && y == cy) {
-                    continue;
-                }
-                // create a vector from the possible center to the gradient origin
-                double dx = x - cx;
-                double dy = y - cy;
-                // normalize d
-                double magnitude = Math.sqrt((dx * dx) + (dy * dy));
-                dx = dx / magnitude;
-                dy = dy / magnitude;
-                double dotProduct = dx*gx + dy*gy;
-                dotProduct = Math.max(0.0,dotProduct);
-                // square and multiply by the weight
-                if (kEnableWeight) {
-                    out.put(cy,cx,out.get(cy,cx)[0] += dotProduct * dotProduct * ((weight.get(cy,cx)[0])/kWeightDivisor));
-                } else {
-                    out.put(cy,cx,out.get(cy,cx)[0] += dotProduct * dotProduct);
-                }
-            }
-        }
-    }
-
-    private static Mat computeMatXGradient (Mat mat) {
-        //Mat output = new Mat(mat.rows(), mat.cols(), CvType.CV_64F);
-        Mat output = new Mat(mat.rows(), mat.cols(), CvType.CV_32F);
-        for (byte y = 0; y < mat.rows(); ++y) {
-            Mat mr = mat.row(y);
-            output.put(y,0, mr.get(0,1)[0] - mr.get(0,0)[0]);
-            for (byte x = 1; x < mat.cols() - 1; ++x) {
-                output.put(y,x, (mr.get(0,x+1)[0] - mr.get(0,x-1)[0])/2.0);
-            }
-        }
-
-        return output;
-    }
-
-    private static Mat matrixMagnitude (Mat matX, Mat matY ) {
-        //Mat output = new Mat(mat.rows(), mat.cols(), CvType.CV_64F);
-        Mat mags = new Mat(matX.rows(), matX.cols(), CvType.CV_32F);
-        for (byte y = 0; y < matX.rows(); ++y) {
-            Mat xr = matX.row(y);
-            Mat yr = matY.row(y);
-            for (byte x = 0; x < matX.cols(); ++x) {
-                double gX = xr.get(0,x)[0];
-                double gY = yr.get(0,x)[0];
-                double magnitude = Math.sqrt((gX * gX) + (gY * gY));
-                mags.put(y,x, magnitude);
-            }
-        }
-        return mags;
-    }
-
-    double computeDynamicThreshold(Mat mat, double stdDevFactor) {
-        MatOfDouble stdMagnGrad = new MatOfDouble();
-        MatOfDouble meanMagnGrad = new MatOfDouble();
-        Core.meanStdDev(mat,stdMagnGrad,meanMagnGrad);
-        double stdDev = stdMagnGrad.get(0,0)[0]/Math.sqrt(mat.rows() * mat.cols());
-        return stdDevFactor * stdDev + meanMagnGrad.get(0,0)[0];
-    }
 }
@@ -8,6 +8,7 @@ import android.view.View;
 import android.view.WindowManager;
 
 import com.tzutalin.dlib.Constants;
+import com.tzutalin.dlib.FaceRegionPredictor;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.CameraBridgeViewBase;
@@ -41,6 +42,9 @@ import static org.opencv.imgproc.Imgproc.TM_SQDIFF_NORMED;
 public class OpenCVcamera extends AppCompatActivity implements CameraBridgeViewBase.CvCameraViewListener2{
     private static final String    TAG                 = "OpenCVcamera::Activity";
     private static final Scalar    FACE_RECT_COLOR     = new Scalar(0, 255, 0, 255);
+    private static final int       MAX_FACES           = 4;
+    // Frames between full frame scans; the ones in between search only around the last faces
+    private static final int       FULL_SCAN_INTERVAL  = 10;
 
     private Mat mRgba;
     private Mat                    mGray;
@@ -59,6 +63,16 @@ public class OpenCVcamera extends AppCompatActivity implements CameraBridgeViewB
     double xCenter = -1;
     double yCenter = -1;
 
+    private final FaceRegionPredictor mRegionPredictor = new FaceRegionPredictor(MAX_FACES);
+    private final int[] mRegions = new int[4 * MAX_FACES];
+    private final int[] mBoxes = new int[4 * MAX_FACES];
+    private MatOfRect mFaces;
+    // Faces of the current frame, reused between frames and grown when a full scan finds more
+    private Rect[] mDetected = newRects(MAX_FACES);
+    private final int[] mFoundFace = new int[4];
+    private final Size mMinFaceSize = new Size();
+    private final Size mMaxFaceSize = new Size();
+
     private int learn_frames = 0;
     private Mat teplateR;
     private Mat teplateL;
@@ -193,6 +207,7 @@ public class OpenCVcamera extends AppCompatActivity implements CameraBridgeViewB
     public OpenCVcamera() {
         mDetectorName = new String[2];
         //mDetectorName[JAVA_DETECTOR] = "Java";
+        mRegionPredictor.setFullScanInterval(FULL_SCAN_INTERVAL);
 
         Log.i(TAG, "Instantiated new " + this.getClass());
     }
@@ -238,11 +253,17 @@ public class OpenCVcamera extends AppCompatActivity implements CameraBridgeViewB
     public void onCameraViewStarted(int width, int height) {
         mGray = new Mat();
         mRgba = new Mat();
+        mFaces = new MatOfRect();
+        mRegionPredictor.reset();
     }
 
     public void onCameraViewStopped() {
         mGray.release();
         mRgba.release();
+        mFaces.release();
+        Log.d(TAG, String.format("Scanned %.0f%% of the frame on average, %d full scans, %d region scans",
+                mRegionPredictor.getAverageScannedArea() * 100, mRegionPredictor.getFullScanCount(),
+                mRegionPredictor.getRegionScanCount()));
     }
 
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
@@ -259,22 +280,20 @@ public class OpenCVcamera extends AppCompatActivity implements CameraBridgeViewB
         }
 
 
-        MatOfRect faces = new MatOfRect();
+        int faceCount = 0;
 
         if (mDetectorType == 0) {
             if (mJavaDetector != null)
-                mJavaDetector.detectMultiScale(mGray, faces, 1.1, 2, 2, // TODO: objdetect.CV_HAAR_SCALE_IMAGE
-                        new Size(mAbsoluteFaceSize, mAbsoluteFaceSize), new Size());
+                faceCount = detectFaces();
         }
         else {
             Log.e(TAG, "Detection method is not selected!");
         }
 
-        Rect[] facesArray = faces.toArray();
-        for (int i = 0; i < facesArray.length; i++)
+        for (int i = 0; i < faceCount; i++)
         {
-            xCenter = (facesArray[i].x + facesArray[i].width + facesArray[i].x) / 2;
-            yCenter = (facesArray[i].y + facesArray[i].y + facesArray[i].height) / 2;
+            xCenter = (mDetected[i].x + mDetected[i].width + mDetected[i].x) / 2;
+            yCenter = (mDetected[i].y + mDetected[i].y + mDetected[i].height) / 2;
             Point center = new Point(xCenter, yCenter);
 
             /*Imgproc.circle(mRgba, center, 10, new Scalar(255, 0, 0, 255), 3);
@@ -284,7 +303,7 @@ public class OpenCVcamera extends AppCompatActivity implements CameraBridgeViewB
                     Core.FONT_HERSHEY_SIMPLEX, 0.7, new Scalar(255, 255, 255,
                             255));*/
 
-            Rect r = facesArray[i];
+            Rect r = mDetected[i];
             // compute the eye area
             Rect eyearea = new Rect(r.x + r.width / 8,
                     (int) (r.y + (r.height / 4.5)), r.width - 2 * r.width / 8,
@@ -313,6 +332,109 @@ public class OpenCVcamera extends AppCompatActivity implements CameraBridgeViewB
         return mRgba;
     }
 
+    /**
+     * Search the regions predicted from the last faces, or the whole frame when a full scan is
+     * due or a face was not found again in its region.
+     *
+     * @return The number of faces written to {@link #mDetected}
+     */
+    private int detectFaces() {
+        mMinFaceSize.width = mAbsoluteFaceSize;
+        mMinFaceSize.height = mAbsoluteFaceSize;
+        if (!mRegionPredictor.isFullScanDue()) {
+            final int count = detectInRegions();
+            if (count >= 0) {
+                remember(count, false);
+                return count;
+            }
+        }
+        mJavaDetector.detectMultiScale(mGray, mFaces, 1.1, 2, 2, // TODO: objdetect.CV_HAAR_SCALE_IMAGE
+                mMinFaceSize, mMaxFaceSize);
+        final int count = mFaces.rows();
+        if (mDetected.length < count) {
+            mDetected = newRects(count);
+        }
+        for (int i = 0; i < count; i++) {
+            mFaces.get(i, 0, mFoundFace);
+            mDetected[i].x = mFoundFace[0];
+            mDetected[i].y = mFoundFace[1];
+            mDetected[i].width = mFoundFace[2];
+            mDetected[i].height = mFoundFace[3];
+        }
+        remember(count, true);
+        return count;
+    }
+
+    /**
+     * Narrows mGray to every region in place rather than taking a submat, which would allocate
+     * per region.
+     *
+     * @return The number of faces written to {@link #mDetected}, the largest of every region in
+     * frame coordinates, or -1 if a region has none
+     */
+    private int detectInRegions() {
+        final int cols = mGray.cols();
+        final int rows = mGray.rows();
+        final int count = mRegionPredictor.predict(cols, rows, mRegions);
+        for (int i = 0; i < count; i++) {
+            final int left = mRegions[4 * i];
+            final int top = mRegions[4 * i + 1];
+            final int right = mRegions[4 * i + 2];
+            final int bottom = mRegions[4 * i + 3];
+            if (right - left < mAbsoluteFaceSize || bottom - top < mAbsoluteFaceSize) {
+                mRegionPredictor.abandonRegionScan(i);
+                return -1;
+            }
+            // adjustROI moves the edges of the view outwards by the given amounts
+            mGray.adjustROI(-top, bottom - rows, -left, right - cols);
+            try {
+                mJavaDetector.detectMultiScale(mGray, mFaces, 1.1, 2, 2, mMinFaceSize, mMaxFaceSize);
+            } finally {
+                mGray.adjustROI(top, rows - bottom, left, cols - right);
+            }
+
+            final Rect largest = mDetected[i];
+            int largestArea = -1;
+            for (int f = 0; f < mFaces.rows(); f++) {
+                mFaces.get(f, 0, mFoundFace);
+                final int area = mFoundFace[2] * mFoundFace[3];
+                if (area > largestArea) {
+                    largestArea = area;
+                    largest.x = mFoundFace[0] + left;
+                    largest.y = mFoundFace[1] + top;
+                    largest.width = mFoundFace[2];
+                    largest.height = mFoundFace[3];
+                }
+            }
+            if (largestArea < 0) {
+                mRegionPredictor.abandonRegionScan(i + 1);
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    private void remember(int count, boolean fullScan) {
+        final int boxes = Math.min(count, MAX_FACES);
+        for (int i = 0; i < boxes; i++) {
+            mBoxes[4 * i] = mDetected[i].x;
+            mBoxes[4 * i + 1] = mDetected[i].y;
+            mBoxes[4 * i + 2] = mDetected[i].x + mDetected[i].width;
+            mBoxes[4 * i + 3] = mDetected[i].y + mDetected[i].height;
+        }
+        // Given the full count, the predictor keeps scanning in full while more faces are found
+        // than it remembers, so none of them is lost until the next scheduled full scan
+        mRegionPredictor.update(mBoxes, count, fullScan);
+    }
+
+    private static Rect[] newRects(int count) {
+        Rect[] rects = new Rect[count];
+        for (int i = 0; i < rects.length; i++) {
+            rects[i] = new Rect();
+        }
+        return rects;
+    }
+
     private void setMinFaceSize(float faceSize) {
         mRelativeFaceSize = faceSize;
         mAbsoluteFaceSize = 0;
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * Draws a frame and its {@link FrameOverlay} into a target bitmap in a single pass.
+ * <p>
+ * Used from one thread only; the Canvas and Paints are reused for every frame.
+ */
+final class OverlayRenderer {
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mEyeRegionPaint = new Paint();
+    private final Paint mLookingPaint = new Paint();
+    private final Paint mCameraPaint = new Paint();
+    private final Paint mPupilPaint = new Paint();
+
+    OverlayRenderer() {
+        mEyeRegionPaint.setColor(Color.BLUE);
+        mEyeRegionPaint.setStrokeWidth(2);
+        mEyeRegionPaint.setStyle(Paint.Style.STROKE);
+        mLookingPaint.setColor(Color.RED);
+        mLookingPaint.setStrokeWidth(2);
+        mCameraPaint.setColor(Color.BLUE);
+        mCameraPaint.setStrokeWidth(2);
+        mPupilPaint.setColor(Color.GREEN);
+        mPupilPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * @param frame  The camera frame, copied into target first
+     * @param target Receives frame and overlay, of the same size as frame
+     */
+    void render(Bitmap frame, FrameOverlay overlay, Bitmap target) {
+        final Canvas canvas = mCanvas;
+        canvas.setBitmap(target);
+        canvas.drawBitmap(frame, 0, 0, null);
+        for (int f = 0; f < overlay.getFaceCount(); f++) {
+            final FrameOverlay.Face face = overlay.getFace(f);
+            canvas.drawRect(face.leftEye[0], face.leftEye[1], face.leftEye[2], face.leftEye[3], mEyeRegionPaint);
+            canvas.drawRect(face.rightEye[0], face.rightEye[1], face.rightEye[2], face.rightEye[3], mEyeRegionPaint);
+            canvas.drawLine(face.noseX, face.noseY, face.lookingX, face.lookingY, mLookingPaint);
+            canvas.drawLine(face.noseX, face.noseY, face.cameraX, face.cameraY, mCameraPaint);
+            canvas.drawCircle(face.rightPupilX, face.rightPupilY, 3, mPupilPaint);
+            canvas.drawCircle(face.leftPupilX, face.leftPupilY, 3, mPupilPaint);
+        }
+        canvas.setBitmap(null);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring between exactly one producer thread and one consumer thread.
+ * <p>
+ * The ring is indexed by two ever increasing sequences: the producer publishes a frame by
+ * advancing the tail after writing its cell, the consumer claims one by advancing the head.
+ * Both live on their own padded cache line so the two threads do not invalidate each other's
+ * line on every frame. Nothing is allocated per frame.
+ * <p>
+ * {@link FrameQueue.DropPolicy#DROP_OLDEST} lets the producer claim the head as well, so the
+ * head is advanced by compare-and-set; the tail is only ever written by the producer. A
+ * consumer without work spins briefly, then yields, then parks until the producer unparks it,
+ * and the same holds for a {@link FrameQueue.DropPolicy#BLOCK} producer facing a full ring.
+ */
+public class SpscRing<T> {
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 1000000L;
+
+    private final Object[] mCells;
+    private final int mMask;
+    private final FrameQueue.DropPolicy mPolicy;
+
+    private final PaddedSequence mHead = new PaddedSequence();
+    private final PaddedSequence mTail = new PaddedSequence();
+    private final AtomicLong mDrops = new AtomicLong();
+    private volatile Thread mParkedConsumer;
+    private volatile Thread mParkedProducer;
+    private volatile boolean mClosed;
+
+    /**
+     * @param capacity Rounded up to the next power of two
+     */
+    public SpscRing(int capacity, FrameQueue.DropPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mCells = new Object[size];
+        mMask = size - 1;
+        mPolicy = policy;
+    }
+
+    /**
+     * Producer side: append a frame, applying the drop policy if the ring is full.
+     *
+     * @return The frame that did not make it into the ring: an evicted one, the offered one,
+     * or null if nothing was dropped
+     */
+    public T offer(T frame) throws InterruptedException {
+        final long tail = mTail.get();
+        T dropped = null;
+        int spins = 0;
+        while (!mClosed) {
+            final long head = mHead.get();
+            if (tail - head < mCells.length) {
+                mCells[(int) tail & mMask] = frame;
+                // A full volatile store, so the waiter check below cannot move above it
+                mTail.set(tail + 1);
+                final Thread consumer = mParkedConsumer;
+                if (consumer != null) {
+                    LockSupport.unpark(consumer);
+                }
+                return dropped;
+            }
+            if (mPolicy == FrameQueue.DropPolicy.DROP_NEWEST) {
+                mDrops.incrementAndGet();
+                return frame;
+            }
+            if (mPolicy == FrameQueue.DropPolicy.DROP_OLDEST) {
+                // Race the consumer for the oldest cell; whoever loses rereads the head
+                final T oldest = cell(head);
+                if (mHead.compareAndSet(head, head + 1)) {
+                    mDrops.incrementAndGet();
+                    dropped = oldest;
+                }
+                continue;
+            }
+            spins = await(spins, true);
+        }
+        return frame;
+    }
+
+    /**
+     * Consumer side: wait for the next frame.
+     *
+     * @return The oldest frame, or null once the ring is closed
+     */
+    public T take() throws InterruptedException {
+        int spins = 0;
+        while (!mClosed) {
+            final T frame = poll();
+            if (frame != null) {
+                return frame;
+            }
+            spins = await(spins, false);
+        }
+        return null;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return The oldest frame, or null if the ring is empty or closed
+     */
+    public T poll() {
+        while (!mClosed) {
+            final long head = mHead.get();
+            if (head == mTail.get()) {
+                return null;
+            }
+            final T frame = cell(head);
+            if (mHead.compareAndSet(head, head + 1)) {
+                final Thread producer = mParkedProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop accepting frames and wake a parked producer or consumer.
+     */
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mParkedConsumer);
+        LockSupport.unpark(mParkedProducer);
+    }
+
+    public int size() {
+        // Read the head first so a concurrent consumer cannot make the result negative
+        final long head = mHead.get();
+        return (int) (mTail.get() - head);
+    }
+
+    public int capacity() {
+        return mCells.length;
+    }
+
+    /**
+     * @return Frames evicted or rejected because the ring was full
+     */
+    public long getDropCount() {
+        return mDrops.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T cell(long sequence) {
+        return (T) mCells[(int) sequence & mMask];
+    }
+
+    /**
+     * Spin, yield, then park until the other side unparks this thread or the park times out.
+     */
+    private int await(int spins, boolean producer) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (spins < SPIN_TRIES) {
+            return spins + 1;
+        }
+        if (spins < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+            return spins + 1;
+        }
+        final Thread self = Thread.currentThread();
+        if (producer) {
+            mParkedProducer = self;
+            // Recheck after publishing the waiter, or a poll in between would be missed
+            if (mTail.get() - mHead.get() >= mCells.length && !mClosed) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            mParkedProducer = null;
+        } else {
+            mParkedConsumer = self;
+            if (mHead.get() == mTail.get() && !mClosed) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            mParkedConsumer = null;
+        }
+        return spins;
+    }
+
+    /**
+     * Padding in front of the sequence. Superclass fields are laid out before subclass fields,
+     * so splitting the padding across the hierarchy keeps the compiler from reordering it.
+     */
+    @SuppressWarnings("unused")
+    private static class SequenceLhsPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class SequenceValue extends SequenceLhsPadding {
+        private static final AtomicLongFieldUpdater<SequenceValue> VALUE =
+                AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "mValue");
+
+        private volatile long mValue;
+
+        final long get() {
+            return mValue;
+        }
+
+        final void set(long value) {
+            mValue = value;
+        }
+
+        final boolean compareAndSet(long expect, long update) {
+            return VALUE.compareAndSet(this, expect, update);
+        }
+    }
+
+    /**
+     * A sequence alone on its cache line, with a line of padding on either side.
+     */
+    @SuppressWarnings("unused")
+    private static final class PaddedSequence extends SequenceValue {
+        long p9, p10, p11, p12, p13, p14, p15;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free triple buffer between one producer and one consumer thread.
+ * <p>
+ * The producer owns the back buffer and the consumer the front buffer; the third one sits in
+ * between holding the latest published frame. {@link #publish(long)} swaps back and middle,
+ * {@link #consume()} swaps middle and front, each with a single atomic exchange, so neither side
+ * ever waits for or sees a buffer the other is using. If the consumer falls behind, the unseen
+ * frame in the middle is replaced by the newer one and counted as dropped; only the latest frame
+ * is ever presented.
+ */
+public class SwapChain<T> {
+    private static final int INDEX_MASK = 3;
+    // Set in mMiddle while it holds a frame the consumer has not taken yet
+    private static final int FRESH = 4;
+
+    private final Object[] mBuffers = new Object[3];
+    private final long[] mStampsNs = new long[3];
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private final AtomicLong mPublishCount = new AtomicLong();
+    private final AtomicLong mDropCount = new AtomicLong();
+    // Producer only
+    private int mBack = 0;
+    // Consumer only
+    private int mFront = 2;
+
+    /**
+     * Start without buffers, the producer creates them through {@link #setBack(Object)}.
+     */
+    public SwapChain() {
+    }
+
+    public SwapChain(T back, T middle, T front) {
+        mBuffers[0] = back;
+        mBuffers[1] = middle;
+        mBuffers[2] = front;
+    }
+
+    /**
+     * @return The buffer to draw the next frame into, may be null until {@link #setBack(Object)}
+     */
+    @SuppressWarnings("unchecked")
+    public T getBack() {
+        return (T) mBuffers[mBack];
+    }
+
+    /**
+     * Replace the back buffer, e.g. with one of a new size. Producer thread only; the caller
+     * owns the buffer it replaces.
+     */
+    public void setBack(T buffer) {
+        mBuffers[mBack] = buffer;
+    }
+
+    /**
+     * Publish the back buffer as the latest frame and take another one as back buffer.
+     *
+     * @param stampNs Returned with the frame from {@link #getFrontStampNs()}
+     * @return False if this replaced a frame the consumer never took
+     */
+    public boolean publish(long stampNs) {
+        mStampsNs[mBack] = stampNs;
+        mPublishCount.incrementAndGet();
+        final int previous = mMiddle.getAndSet(mBack | FRESH);
+        mBack = previous & INDEX_MASK;
+        if ((previous & FRESH) != 0) {
+            mDropCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take the latest published frame as front buffer. The previous front buffer goes back to
+     * the producer, so the consumer must be done with it.
+     *
+     * @return The new front buffer, or null if nothing was published since the last call
+     */
+    @SuppressWarnings("unchecked")
+    public T consume() {
+        if ((mMiddle.get() & FRESH) == 0) {
+            return null;
+        }
+        final int previous = mMiddle.getAndSet(mFront);
+        mFront = previous & INDEX_MASK;
+        return (T) mBuffers[mFront];
+    }
+
+    /**
+     * @return Stamp the current front buffer was published with. Consumer thread only
+     */
+    public long getFrontStampNs() {
+        return mStampsNs[mFront];
+    }
+
+    public long getPublishCount() {
+        return mPublishCount.get();
+    }
+
+    /**
+     * @return Published frames replaced before the consumer took them
+     */
+    public long getDropCount() {
+        return mDropCount.get();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the preview ladder and the step decisions of {@link AdaptivePreviewController}.
+ */
+public class AdaptivePreviewControllerTest {
+    private static final int[][] SIZES = {{1920, 1080}, {1280, 720}, {640, 480}, {320, 240}, {4000, 3000}};
+    private static final int[][] FPS_RANGES = {{10, 10}, {7, 15}, {15, 15}, {15, 24}, {24, 24}, {15, 30}, {30, 30}};
+    private static final long BUDGET_NS = 100000000L;
+    private static final int WINDOW = 5;
+
+    @Test
+    public void testLadderKeepsOneSizeAndSortsByFrameRate() {
+        List<AdaptivePreviewController.Level> ladder = newLadder(640 * 480);
+        // The ranges holding 10, 15, 24 and 30 fps best
+        assertEquals(4, ladder.size());
+        for (int i = 0; i < ladder.size(); i++) {
+            assertEquals(640, ladder.get(i).width);
+            assertEquals(480, ladder.get(i).height);
+            if (i > 0) {
+                assertTrue(ladder.get(i - 1).maxFps < ladder.get(i).maxFps);
+            }
+        }
+        AdaptivePreviewController.Level first = ladder.get(0);
+        assertEquals(10, first.minFps);
+        assertEquals(10, first.maxFps);
+        assertEquals(30, ladder.get(ladder.size() - 1).minFps);
+    }
+
+    @Test
+    public void testLadderSizeIsLargestWithinTargetOrSmallest() {
+        assertEquals(1280, newLadder(1280 * 720).get(0).width);
+        assertEquals(640, newLadder(1280 * 720 - 1).get(0).width);
+        // Nothing usable is that small, 4000x3000 is too large and 320x240 too narrow
+        assertEquals(640, newLadder(100 * 100).get(0).width);
+    }
+
+    @Test
+    public void testStartsAtInitialPixelRate() {
+        AdaptivePreviewController controller = newController(640L * 480 * 15);
+        assertEquals("640x480@15-15", controller.getLevel().toString());
+    }
+
+    @Test
+    public void testStepsDownWhenOverBudget() {
+        AdaptivePreviewController controller = newController(640L * 480 * 15);
+        final int start = controller.getLevelIndex();
+        for (int i = 0; i < WINDOW - 1; i++) {
+            assertNull(controller.onFrameLatency(2 * BUDGET_NS));
+        }
+        assertNotNull(controller.onFrameLatency(2 * BUDGET_NS));
+        assertEquals(start - 1, controller.getLevelIndex());
+        assertEquals(1, controller.getChangeCount());
+    }
+
+    @Test
+    public void testStepsUpWhenWellUnderBudgetAndHoldsAfterBackingOff() {
+        AdaptivePreviewController controller = newController(640L * 480 * 15);
+        final int start = controller.getLevelIndex();
+        feed(controller, BUDGET_NS / 10, WINDOW);
+        assertEquals(start + 1, controller.getLevelIndex());
+
+        // Over budget at the higher level steps back down, then the level is not retried soon
+        feed(controller, 2 * BUDGET_NS, WINDOW);
+        assertEquals(start, controller.getLevelIndex());
+        feed(controller, BUDGET_NS / 10, 3 * WINDOW);
+        assertEquals(start, controller.getLevelIndex());
+    }
+
+    @Test
+    public void testWithinBudgetKeepsLevel() {
+        AdaptivePreviewController controller = newController(640L * 480 * 15);
+        final int start = controller.getLevelIndex();
+        feed(controller, BUDGET_NS * 8 / 10, 10 * WINDOW);
+        assertEquals(start, controller.getLevelIndex());
+        assertEquals(BUDGET_NS * 8 / 10, controller.getAverageLatencyNs());
+    }
+
+    @Test
+    public void testListenerSeesEveryChange() {
+        final int[] changes = new int[1];
+        AdaptivePreviewController controller = new AdaptivePreviewController(
+                newLadder(640 * 480), BUDGET_NS, WINDOW, 0, new AdaptivePreviewController.Listener() {
+                    @Override
+                    public void onLevelChanged(AdaptivePreviewController.Level previous,
+                                               AdaptivePreviewController.Level next) {
+                        assertTrue(next.getPixelRate() > previous.getPixelRate());
+                        changes[0]++;
+                    }
+                });
+        feed(controller, 0, 3 * WINDOW);
+        assertEquals(3, changes[0]);
+        assertEquals(3, controller.getLevelIndex());
+    }
+
+    private static AdaptivePreviewController newController(long initialPixelRate) {
+        return new AdaptivePreviewController(newLadder(640 * 480), BUDGET_NS, WINDOW, initialPixelRate, null);
+    }
+
+    private static List<AdaptivePreviewController.Level> newLadder(int targetArea) {
+        return AdaptivePreviewController.buildLadder(SIZES, FPS_RANGES, 320, 1920 * 1080, targetArea);
+    }
+
+    private static void feed(AdaptivePreviewController controller, long latencyNs, int frames) {
+        for (int i = 0; i < frames; i++) {
+            controller.onFrameLatency(latencyNs);
+        }
+    }
+}
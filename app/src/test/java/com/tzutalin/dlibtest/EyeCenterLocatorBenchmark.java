@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Micro benchmark of the pupil search, skipped unless run with {@code ./gradlew test -Pbenchmark}.
+ * Timings are printed to stdout; the asserts only check that every variant agrees.
+ * Eyes are half as high as wide and the gradient threshold factor is 0 so that nearly every
+ * pixel contributes, which is the worst case of the center search.
+ */
+public class EyeCenterLocatorBenchmark {
+    private static final int[] FAST_EYE_WIDTHS = {10, 20, 50};
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+
+    @BeforeClass
+    public static void assumeBenchmarksEnabled() {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark", Boolean.getBoolean("dlibtest.benchmark"));
+    }
+
+    @Test
+    public void benchmarkDisplacementTable() {
+        for (int width : FAST_EYE_WIDTHS) {
+            final int rows = width / 2;
+            byte[] eye = newEye(rows, width);
+
+            EyeCenterLocator formula = newLocator(width);
+            formula.setUseDisplacementTable(false);
+            EyeCenterLocator table = newLocator(width);
+
+            assertEquals(formula.locate(eye, rows, width), table.locate(eye, rows, width));
+            long formulaNs = time(formula, eye, rows, width);
+            long tableNs = time(table, eye, rows, width);
+            System.out.println(String.format("kFastEyeWidth %d (%dx%d): formula %d us, table %d us",
+                    width, width, rows, formulaNs / 1000, tableNs / 1000));
+        }
+    }
+
+    @Test
+    public void benchmarkParallelScaling() {
+        final int[] widths = {20, 50, 80};
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int width : widths) {
+            final int rows = width / 2;
+            byte[] eye = newEye(rows, width);
+            EyeCenterLocator sequential = newLocator(width);
+            final int expected = sequential.locate(eye, rows, width);
+            final long sequentialNs = time(sequential, eye, rows, width);
+            StringBuilder sb = new StringBuilder(String.format("kFastEyeWidth %d: 1 thread %d us",
+                    width, sequentialNs / 1000));
+            for (int threads = 2; threads <= Math.max(2, cores); threads *= 2) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                EyeCenterLocator parallel = newLocator(width);
+                parallel.setParallelism(pool, 0);
+                assertEquals(expected, parallel.locate(eye, rows, width));
+                final long parallelNs = time(parallel, eye, rows, width);
+                sb.append(String.format(", %d threads %d us (x%.2f)", threads, parallelNs / 1000,
+                        (double) sequentialNs / parallelNs));
+                pool.shutdown();
+            }
+            System.out.println(sb.toString());
+        }
+    }
+
+    static EyeCenterLocator newLocator(int width) {
+        return new EyeCenterLocator(width, 5, true, 1.0, 0.0);
+    }
+
+    static byte[] newEye(int rows, int cols) {
+        byte[] eye = EyeCenterLocatorTest.pupilCrop(rows, cols, cols / 2, rows / 2, rows / 3.0);
+        Random random = new Random(7);
+        for (int i = 0; i < eye.length; i++) {
+            eye[i] = (byte) ((eye[i] & 0xff) + random.nextInt(20));
+        }
+        return eye;
+    }
+
+    /**
+     * @return Average nanoseconds per locate call
+     */
+    static long time(EyeCenterLocator locator, byte[] eye, int rows, int cols) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            locator.locate(eye, rows, cols);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            locator.locate(eye, rows, cols);
+        }
+        return (System.nanoTime() - start) / ROUNDS;
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EyeCenterLocatorTest {
+    private static final int FAST_EYE_WIDTH = 10;
+    private static final int WEIGHT_BLUR_SIZE = 5;
+    private static final boolean ENABLE_WEIGHT = true;
+    private static final double WEIGHT_DIVISOR = 1.0;
+    private static final double GRADIENT_THRESHOLD = 50.0;
+
+    @Test
+    public void testMatchesMatPathOnDarkPupil() {
+        EyeCenterLocator locator = newLocator();
+        for (int cy = 1; cy < 5; cy++) {
+            for (int cx = 2; cx < 8; cx++) {
+                byte[] eye = pupilCrop(5, FAST_EYE_WIDTH, cx, cy, 2.0);
+                assertEquals(MatPathReference.locate(eye, 5, FAST_EYE_WIDTH, GRADIENT_THRESHOLD),
+                        locator.locate(eye, 5, FAST_EYE_WIDTH));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesMatPathOnNoisyCrops() {
+        Random random = new Random(42);
+        int[][] shapes = {{2, 10}, {3, 10}, {5, 10}, {7, 10}, {10, 10}};
+        double[] thresholds = {GRADIENT_THRESHOLD, 0.0};
+        for (double threshold : thresholds) {
+            EyeCenterLocator locator = new EyeCenterLocator(FAST_EYE_WIDTH, WEIGHT_BLUR_SIZE, ENABLE_WEIGHT, WEIGHT_DIVISOR, threshold);
+            for (int[] shape : shapes) {
+                for (int i = 0; i < 20; i++) {
+                    byte[] eye = new byte[shape[0] * shape[1]];
+                    random.nextBytes(eye);
+                    int expected = MatPathReference.locate(eye, shape[0], shape[1], threshold);
+                    locator.setUseDisplacementTable(true);
+                    assertEquals(expected, locator.locate(eye, shape[0], shape[1]));
+                    locator.setUseDisplacementTable(false);
+                    assertEquals(expected, locator.locate(eye, shape[0], shape[1]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        EyeCenterLocator sequential = new EyeCenterLocator(FAST_EYE_WIDTH, WEIGHT_BLUR_SIZE, ENABLE_WEIGHT, WEIGHT_DIVISOR, 0.0);
+        EyeCenterLocator parallel = new EyeCenterLocator(FAST_EYE_WIDTH, WEIGHT_BLUR_SIZE, ENABLE_WEIGHT, WEIGHT_DIVISOR, 0.0);
+        parallel.setParallelism(pool, 0);
+        Random random = new Random(3);
+        for (int rows = 2; rows <= 12; rows++) {
+            byte[] eye = new byte[rows * FAST_EYE_WIDTH];
+            random.nextBytes(eye);
+            assertEquals(sequential.locate(eye, rows, FAST_EYE_WIDTH), parallel.locate(eye, rows, FAST_EYE_WIDTH));
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFindsPupil() {
+        // With the app's factor of 50 the dynamic threshold drops nearly every gradient of a
+        // tiny synthetic crop, so use the plain standard deviation as threshold here.
+        EyeCenterLocator locator = new EyeCenterLocator(FAST_EYE_WIDTH, WEIGHT_BLUR_SIZE, ENABLE_WEIGHT, WEIGHT_DIVISOR, 0.0);
+        byte[] eye = pupilCrop(6, FAST_EYE_WIDTH, 6, 3, 2.5);
+        int index = locator.locate(eye, 6, FAST_EYE_WIDTH);
+        int x = index % FAST_EYE_WIDTH;
+        int y = index / FAST_EYE_WIDTH;
+        assertTrue("x " + x, Math.abs(x - 6) <= 1);
+        assertTrue("y " + y, Math.abs(y - 3) <= 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsSingleRow() {
+        newLocator().locate(new byte[FAST_EYE_WIDTH], 1, FAST_EYE_WIDTH);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsSingleColumn() {
+        newLocator().locate(new byte[5], 5, 1);
+    }
+
+    private static EyeCenterLocator newLocator() {
+        return new EyeCenterLocator(FAST_EYE_WIDTH, WEIGHT_BLUR_SIZE, ENABLE_WEIGHT, WEIGHT_DIVISOR, GRADIENT_THRESHOLD);
+    }
+
+    static byte[] pupilCrop(int rows, int cols, int cx, int cy, double radius) {
+        byte[] eye = new byte[rows * cols];
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                double d = Math.sqrt((x - cx) * (x - cx) + (y - cy) * (y - cy));
+                eye[y * cols + x] = (byte) (d <= radius ? 30 : 200);
+            }
+        }
+        return eye;
+    }
+
+    /**
+     * The former OnGetImageListener.findEyeCenter and its helpers, copied verbatim from the Mat
+     * based implementation and run on the minimal {@link Mat} stand-in below, since the OpenCV
+     * native library is not available to local unit tests. Logging and the scaling step are left
+     * out, the array path receives the already scaled eye.
+     * <p>
+     * The one deliberate difference is marked in computeMatXGradient: the original never wrote
+     * the last column, leaving whatever the freshly allocated Mat held there; the locator uses
+     * the backward difference.
+     */
+    static final class MatPathReference {
+        static final int CV_8U = 0;
+        static final int CV_32F = 5;
+        static final int CV_64F = 6;
+
+        private static final int kWeightBlurSize = WEIGHT_BLUR_SIZE;
+        private static final boolean kEnableWeight = ENABLE_WEIGHT;
+        private static final double kWeightDivisor = WEIGHT_DIVISOR;
+
+        static int locate(byte[] pixels, int rows, int cols, double gradientThreshold) {
+            Mat eyeROI = new Mat(rows, cols, CV_8U);
+            for (int y = 0; y < rows; ++y) {
+                for (int x = 0; x < cols; ++x) {
+                    eyeROI.put(y, x, pixels[y * cols + x] & 0xff);
+                }
+            }
+            Point maxP = findEyeCenter(eyeROI, gradientThreshold);
+            return (int) maxP.y * cols + (int) maxP.x;
+        }
+
+        private static Point findEyeCenter(Mat eyeROI, double kGradientThreshold) {
+            // draw eye region
+            //rectangle(face,eye,1234);
+            //-- Find the gradient
+            Mat gradientX = computeMatXGradient(eyeROI);
+            Mat gradientY = computeMatXGradient(eyeROI.t()).t();
+            //-- Normalize and threshold the gradient
+            // compute all the magnitudes
+            Mat mags = matrixMagnitude(gradientX, gradientY);
+            //compute the threshold
+            double gradientThresh = computeDynamicThreshold(mags, kGradientThreshold);
+            //double gradientThresh = kGradientThreshold;
+            //double gradientThresh = 0;
+            //normalize
+            for (int y = 0; y < eyeROI.rows(); ++y) {
+                for (int x = 0; x < eyeROI.cols(); ++x) {
+                    double gX = gradientX.get(y,x)[0];
+                    double gY = gradientY.get(y,x)[0];
+                    double magnitude = mags.get(y,x)[0];
+                    if (magnitude > gradientThresh) {
+                        gradientX.put(y,x, gX/magnitude);
+                        gradientY.put(y,x, gY/magnitude);
+                    } else {
+                        gradientX.put(y,x,0.0);
+                        gradientY.put(y,x,0.0);
+                    }
+                }
+            }
+            mags.release();
+            //imshow(debugWindow,gradientX); //mb needed
+            //-- Create a blurred and inverted image for weighting
+            Mat weight = new Mat();
+            Imgproc.GaussianBlur( eyeROI, weight, new Size( kWeightBlurSize, kWeightBlurSize ), 0, 0 );
+            for (int y = 0; y < weight.rows(); ++y) {
+                for (int x = 0; x < weight.cols(); ++x) {
+                    weight.put(y,x,(255 - weight.get(y,x)[0]));
+                }
+            }
+            //imshow(debugWindow,weight);
+            //-- Run the algorithm!
+            Mat outSum = Mat.zeros(eyeROI.rows(),eyeROI.cols(),CV_64F);
+            eyeROI.release();
+            // for each possible gradient location
+            // Note: these loops are reversed from the way the paper does them
+            // it evaluates every possible center for each gradient location instead of
+            // every possible gradient location for every center.
+            for (int y = 0; y < weight.rows(); ++y) {
+                for (int x = 0; x < weight.cols(); ++x) {
+                    double gX = gradientX.get(y,x)[0];
+                    double gY = gradientY.get(y,x)[0];
+                    if (gX == 0.0 && gY == 0.0) {
+                        continue;
+                    }
+                    testPossibleCentersFormula(x, y, weight, gX, gY, outSum);
+                }
+            }
+            gradientX.release();
+            gradientY.release();
+            // scale all the values down, basically averaging them
+            double numGradients = (weight.rows()*weight.cols());
+            weight.release();
+            Mat out = new Mat();
+            outSum.convertTo(out, CV_32F,1.0/numGradients);
+            outSum.release();
+            //imshow(debugWindow,out);
+            //-- Find the maximum point
+            Point maxP;
+            double maxVal;
+            Core.MinMaxLocResult res = Core.minMaxLoc(out);
+            maxVal = res.maxVal;
+            maxP = res.maxLoc;
+            return maxP;
+        }
+
+        static void testPossibleCentersFormula(int x, int y, Mat weight,double gx, double gy, Mat out) {
+            // for all possible centers
+            for (int cy = 0; cy < out.rows(); ++cy) {
+                for (int cx = 0; cx < out.cols(); ++cx) {
+                    if (x == cx && y == cy) {
+                        continue;
+                    }
+                    // create a vector from the possible center to the gradient origin
+                    double dx = x - cx;
+                    double dy = y - cy;
+                    // normalize d
+                    double magnitude = Math.sqrt((dx * dx) + (dy * dy));
+                    dx = dx / magnitude;
+                    dy = dy / magnitude;
+                    double dotProduct = dx*gx + dy*gy;
+                    dotProduct = Math.max(0.0,dotProduct);
+                    // square and multiply by the weight
+                    if (kEnableWeight) {
+                        out.put(cy,cx,out.get(cy,cx)[0] += dotProduct * dotProduct * ((weight.get(cy,cx)[0])/kWeightDivisor));
+                    } else {
+                        out.put(cy,cx,out.get(cy,cx)[0] += dotProduct * dotProduct);
+                    }
+                }
+            }
+        }
+
+        private static Mat computeMatXGradient (Mat mat) {
+            //Mat output = new Mat(mat.rows(), mat.cols(), CvType.CV_64F);
+            Mat output = new Mat(mat.rows(), mat.cols(), CvType.CV_32F);
+            for (byte y = 0; y < mat.rows(); ++y) {
+                Mat mr = mat.row(y);
+                output.put(y,0, mr.get(0,1)[0] - mr.get(0,0)[0]);
+                for (byte x = 1; x < mat.cols() - 1; ++x) {
+                    output.put(y,x, (mr.get(0,x+1)[0] - mr.get(0,x-1)[0])/2.0);
+                }
+                // Not in the original, see the class comment
+                output.put(y, mat.cols() - 1, mr.get(0, mat.cols() - 1)[0] - mr.get(0, mat.cols() - 2)[0]);
+            }
+
+            return output;
+        }
+
+        private static Mat matrixMagnitude (Mat matX, Mat matY ) {
+            //Mat output = new Mat(mat.rows(), mat.cols(), CvType.CV_64F);
+            Mat mags = new Mat(matX.rows(), matX.cols(), CvType.CV_32F);
+            for (byte y = 0; y < matX.rows(); ++y) {
+                Mat xr = matX.row(y);
+                Mat yr = matY.row(y);
+                for (byte x = 0; x < matX.cols(); ++x) {
+                    double gX = xr.get(0,x)[0];
+                    double gY = yr.get(0,x)[0];
+                    double magnitude = Math.sqrt((gX * gX) + (gY * gY));
+                    mags.put(y,x, magnitude);
+                }
+            }
+            return mags;
+        }
+
+        static double computeDynamicThreshold(Mat mat, double stdDevFactor) {
+            MatOfDouble stdMagnGrad = new MatOfDouble();
+            MatOfDouble meanMagnGrad = new MatOfDouble();
+            Core.meanStdDev(mat,stdMagnGrad,meanMagnGrad);
+            double stdDev = stdMagnGrad.get(0,0)[0]/Math.sqrt(mat.rows() * mat.cols());
+            return stdDevFactor * stdDev + meanMagnGrad.get(0,0)[0];
+        }
+    }
+
+    /**
+     * Single channel Mat holding its values as double, converted on put the way OpenCV stores
+     * them in the Mat's depth.
+     */
+    static class Mat {
+        private double[] mData;
+        private int mOffset;
+        private int mStride;
+        private int mRows;
+        private int mCols;
+        private int mType;
+
+        Mat() {
+            this(0, 0, MatPathReference.CV_8U);
+        }
+
+        Mat(int rows, int cols, int type) {
+            create(rows, cols, type);
+        }
+
+        static Mat zeros(int rows, int cols, int type) {
+            return new Mat(rows, cols, type);
+        }
+
+        void create(int rows, int cols, int type) {
+            mData = new double[rows * cols];
+            mOffset = 0;
+            mStride = cols;
+            mRows = rows;
+            mCols = cols;
+            mType = type;
+        }
+
+        int rows() {
+            return mRows;
+        }
+
+        int cols() {
+            return mCols;
+        }
+
+        double[] get(int row, int col) {
+            return new double[]{mData[mOffset + row * mStride + col]};
+        }
+
+        int put(int row, int col, double... value) {
+            final double v = value[0];
+            switch (mType) {
+                case MatPathReference.CV_8U:
+                    mData[mOffset + row * mStride + col] = Math.max(0, Math.min(255, Math.rint(v)));
+                    break;
+                case MatPathReference.CV_32F:
+                    mData[mOffset + row * mStride + col] = (float) v;
+                    break;
+                default:
+                    mData[mOffset + row * mStride + col] = v;
+                    break;
+            }
+            return 1;
+        }
+
+        Mat row(int y) {
+            Mat row = new Mat(0, 0, mType);
+            row.mData = mData;
+            row.mOffset = mOffset + y * mStride;
+            row.mStride = mStride;
+            row.mRows = 1;
+            row.mCols = mCols;
+            return row;
+        }
+
+        Mat t() {
+            Mat t = new Mat(mCols, mRows, mType);
+            for (int y = 0; y < mRows; ++y) {
+                for (int x = 0; x < mCols; ++x) {
+                    t.put(x, y, get(y, x)[0]);
+                }
+            }
+            return t;
+        }
+
+        void convertTo(Mat dst, int type, double alpha) {
+            dst.create(mRows, mCols, type);
+            for (int y = 0; y < mRows; ++y) {
+                for (int x = 0; x < mCols; ++x) {
+                    dst.put(y, x, get(y, x)[0] * alpha);
+                }
+            }
+        }
+
+        void release() {
+        }
+    }
+
+    static final class MatOfDouble extends Mat {
+    }
+
+    static final class CvType {
+        static final int CV_32F = MatPathReference.CV_32F;
+    }
+
+    static final class Size {
+        final double width;
+        final double height;
+
+        Size(double width, double height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    static final class Point {
+        final double x;
+        final double y;
+
+        Point(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    static final class Core {
+        static final class MinMaxLocResult {
+            double maxVal;
+            Point maxLoc;
+        }
+
+        /**
+         * Mean and population standard deviation, in that argument order as in OpenCV.
+         */
+        static void meanStdDev(Mat src, Mat mean, Mat stddev) {
+            final int n = src.rows() * src.cols();
+            double sum = 0;
+            for (int y = 0; y < src.rows(); ++y) {
+                for (int x = 0; x < src.cols(); ++x) {
+                    sum += src.get(y, x)[0];
+                }
+            }
+            final double m = sum / n;
+            double sq = 0;
+            for (int y = 0; y < src.rows(); ++y) {
+                for (int x = 0; x < src.cols(); ++x) {
+                    final double d = src.get(y, x)[0] - m;
+                    sq += d * d;
+                }
+            }
+            mean.create(1, 1, MatPathReference.CV_64F);
+            mean.put(0, 0, m);
+            stddev.create(1, 1, MatPathReference.CV_64F);
+            stddev.put(0, 0, Math.sqrt(sq / n));
+        }
+
+        /**
+         * The first maximum in row-major order, as OpenCV reports it.
+         */
+        static MinMaxLocResult minMaxLoc(Mat src) {
+            MinMaxLocResult result = new MinMaxLocResult();
+            for (int y = 0; y < src.rows(); ++y) {
+                for (int x = 0; x < src.cols(); ++x) {
+                    final double v = src.get(y, x)[0];
+                    if (result.maxLoc == null || v > result.maxVal) {
+                        result.maxVal = v;
+                        result.maxLoc = new Point(x, y);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    static final class Imgproc {
+        /**
+         * OpenCV's 5x5 kernel for sigma 0, [1 4 6 4 1] / 16 in both directions, with reflect-101
+         * borders. An 8-bit result is the exact sum rounded half up, as the fixed-point 8-bit
+         * filter computes it.
+         */
+        static void GaussianBlur(Mat src, Mat dst, Size ksize, double sigmaX, double sigmaY) {
+            final int[] k = {1, 4, 6, 4, 1};
+            final int rows = src.rows();
+            final int cols = src.cols();
+            dst.create(rows, cols, MatPathReference.CV_8U);
+            for (int y = 0; y < rows; ++y) {
+                for (int x = 0; x < cols; ++x) {
+                    double sum = 0;
+                    for (int j = -2; j <= 2; j++) {
+                        for (int i = -2; i <= 2; i++) {
+                            sum += k[j + 2] * k[i + 2] * src.get(border(y + j, rows), border(x + i, cols))[0];
+                        }
+                    }
+                    dst.put(y, x, Math.floor(sum / 256 + 0.5));
+                }
+            }
+        }
+
+        private static int border(int p, int len) {
+            if (len == 1) {
+                return 0;
+            }
+            while (p < 0 || p >= len) {
+                p = p < 0 ? -p : 2 * len - p - 2;
+            }
+            return p;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that both filter types of {@link FaceFilterBank} take out jitter and follow motion.
+ */
+public class FaceFilterBankTest {
+    private static final long FRAME_NS = 33000000L;
+
+    @Test
+    public void testFirstSampleAndNonePassThrough() {
+        for (FaceFilterBank.Type type : FaceFilterBank.Type.values()) {
+            FaceFilterBank bank = new FaceFilterBank(type, 2);
+            float[] values = {3, -7};
+            bank.filter(0, values);
+            assertEquals(3, values[0], 0);
+            assertEquals(-7, values[1], 0);
+        }
+        FaceFilterBank none = new FaceFilterBank(FaceFilterBank.Type.NONE, 1);
+        float[] values = {1};
+        none.filter(0, values);
+        values[0] = 50;
+        none.filter(FRAME_NS, values);
+        assertEquals(50, values[0], 0);
+    }
+
+    @Test
+    public void testJitterIsReduced() {
+        for (FaceFilterBank.Type type : new FaceFilterBank.Type[]{FaceFilterBank.Type.ONE_EURO,
+                FaceFilterBank.Type.KALMAN}) {
+            FaceFilterBank bank = new FaceFilterBank(type, 1);
+            Random random = new Random(5);
+            float[] values = new float[1];
+            double inputSquares = 0;
+            double outputSquares = 0;
+            final int frames = 600;
+            for (int i = 0; i < frames; i++) {
+                final double noise = random.nextGaussian() * 2;
+                values[0] = (float) (100 + noise);
+                bank.filter(i * FRAME_NS, values);
+                if (i >= 30) {
+                    inputSquares += noise * noise;
+                    outputSquares += (values[0] - 100) * (values[0] - 100);
+                }
+            }
+            assertTrue(type + " " + outputSquares / inputSquares, outputSquares < inputSquares / 4);
+        }
+    }
+
+    @Test
+    public void testFollowsSteadyMotion() {
+        for (FaceFilterBank.Type type : new FaceFilterBank.Type[]{FaceFilterBank.Type.ONE_EURO,
+                FaceFilterBank.Type.KALMAN}) {
+            FaceFilterBank bank = new FaceFilterBank(type, 1);
+            float[] values = new float[1];
+            // 150 units/s, a face crossing half the frame per second
+            for (int i = 0; i < 90; i++) {
+                values[0] = 5f * i;
+                bank.filter(i * FRAME_NS, values);
+            }
+            assertEquals(type.toString(), 5f * 89, values[0], 5f);
+        }
+    }
+
+    @Test
+    public void testResetStartsOver() {
+        FaceFilterBank bank = new FaceFilterBank(FaceFilterBank.Type.ONE_EURO, 1);
+        float[] values = {0};
+        bank.filter(0, values);
+        bank.reset();
+        values[0] = 200;
+        bank.filter(FRAME_NS, values);
+        assertEquals(200, values[0], 0);
+    }
+
+    @Test
+    public void testChannelsAreIndependent() {
+        FaceFilterBank bank = new FaceFilterBank(FaceFilterBank.Type.KALMAN, 2);
+        float[] values = {10, 10};
+        bank.filter(0, values);
+        for (int i = 1; i < 30; i++) {
+            values[0] = 10;
+            values[1] = 10 + 3 * i;
+            bank.filter(i * FRAME_NS, values);
+        }
+        assertEquals(10, values[0], 1e-3);
+        assertTrue(values[1] > 80);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import com.tzutalin.dlib.FaceRegionPredictor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the search regions and the full scan schedule of {@link FaceRegionPredictor}.
+ */
+public class FaceRegionPredictorTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private final int[] mRegions = new int[8];
+
+    @Test
+    public void testFullScanIsDueWithoutFacesAndAtTheInterval() {
+        FaceRegionPredictor predictor = new FaceRegionPredictor(2);
+        predictor.setFullScanInterval(3);
+        assertTrue(predictor.isFullScanDue());
+        predictor.update(new int[0], 0, true);
+        assertTrue(predictor.isFullScanDue());
+
+        predictor.update(new int[]{100, 100, 200, 200}, 1, true);
+        assertFalse(predictor.isFullScanDue());
+        predictor.update(new int[]{100, 100, 200, 200}, 1, false);
+        assertFalse(predictor.isFullScanDue());
+        predictor.update(new int[]{100, 100, 200, 200}, 1, false);
+        assertTrue(predictor.isFullScanDue());
+        predictor.update(new int[]{100, 100, 200, 200}, 1, true);
+        assertFalse(predictor.isFullScanDue());
+
+        predictor.reset();
+        assertTrue(predictor.isFullScanDue());
+    }
+
+    @Test
+    public void testRegionGrowsByTheMargin() {
+        FaceRegionPredictor predictor = new FaceRegionPredictor(2);
+        predictor.setMargin(0.5f);
+        predictor.update(new int[]{200, 100, 300, 200}, 1, true);
+        assertEquals(1, predictor.predict(WIDTH, HEIGHT, mRegions));
+        assertArrayEquals(new int[]{150, 50, 350, 250}, Arrays.copyOf(mRegions, 4));
+    }
+
+    @Test
+    public void testRegionFollowsMotion() {
+        FaceRegionPredictor predictor = new FaceRegionPredictor(2);
+        predictor.setMargin(0);
+        predictor.update(new int[]{200, 100, 300, 200}, 1, true);
+        predictor.update(new int[]{220, 100, 320, 200}, 1, false);
+        predictor.predict(WIDTH, HEIGHT, mRegions);
+        // Moved 20 to the right, grown by the 20 it may be off
+        assertArrayEquals(new int[]{220, 100, 360, 200}, Arrays.copyOf(mRegions, 4));
+    }
+
+    @Test
+    public void testRegionIsClampedToTheFrame() {
+        FaceRegionPredictor predictor = new FaceRegionPredictor(2);
+        predictor.update(new int[]{0, 400, 100, 480}, 1, true);
+        predictor.predict(WIDTH, HEIGHT, mRegions);
+        assertEquals(0, mRegions[0]);
+        assertEquals(HEIGHT, mRegions[3]);
+    }
+
+    @Test
+    public void testAverageScannedArea() {
+        FaceRegionPredictor predictor = new FaceRegionPredictor(2);
+        assertEquals(1, predictor.getAverageScannedArea(), 0);
+        predictor.setMargin(0);
+        predictor.update(new int[]{0, 0, 320, 240}, 1, true);
+        predictor.predict(WIDTH, HEIGHT, mRegions);
+        predictor.update(new int[]{0, 0, 320, 240}, 1, false);
+        // A full frame and a quarter of one
+        assertEquals(0.625f, predictor.getAverageScannedArea(), 1e-6f);
+        assertEquals(1, predictor.getFullScanCount());
+        assertEquals(1, predictor.getRegionScanCount());
+    }
+
+    @Test
+    public void testAbandonedRegionScanCountsTowardsScannedArea() {
+        FaceRegionPredictor predictor = new FaceRegionPredictor(2);
+        predictor.setMargin(0);
+        predictor.setFullScanInterval(3);
+        predictor.update(new int[]{0, 0, 320, 240, 320, 240, 640, 480}, 2, true);
+        assertEquals(2, predictor.predict(WIDTH, HEIGHT, mRegions));
+        // The first face was found, the second was lost, then the frame was scanned in full
+        predictor.abandonRegionScan(2);
+        predictor.update(new int[]{0, 0, 320, 240, 320, 240, 640, 480}, 2, true);
+        // Two full frames and two quarters of one over two frames
+        assertEquals(1.25f, predictor.getAverageScannedArea(), 1e-6f);
+        assertEquals(2, predictor.getFullScanCount());
+        assertEquals(0, predictor.getRegionScanCount());
+    }
+
+    @Test
+    public void testFullScanStaysDueWhileFacesAreDropped() {
+        FaceRegionPredictor predictor = new FaceRegionPredictor(1);
+        predictor.setFullScanInterval(3);
+        predictor.update(new int[]{100, 100, 200, 200}, 2, true);
+        assertEquals(1, predictor.getCount());
+        assertTrue(predictor.isFullScanDue());
+        predictor.update(new int[]{100, 100, 200, 200}, 1, true);
+        assertFalse(predictor.isFullScanDue());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks identity assignment and the birth and death rules of {@link FaceTracker}.
+ */
+public class FaceTrackerTest {
+    private static final int CAPACITY = 8;
+    private static final int MAX_DETECTIONS = 4;
+
+    private final FaceTracker.Track[] mTracks = new FaceTracker.Track[MAX_DETECTIONS];
+
+    @Test
+    public void testIdsFollowFacesWhenOrderChanges() {
+        FaceTracker tracker = new FaceTracker(CAPACITY, MAX_DETECTIONS);
+        tracker.update(new int[]{0, 0, 50, 50, 200, 0, 250, 50}, 2, mTracks);
+        final int left = mTracks[0].getId();
+        final int right = mTracks[1].getId();
+        assertNotEquals(left, right);
+
+        // Listed the other way round and moved a little
+        tracker.update(new int[]{205, 3, 255, 53, 4, 2, 54, 52}, 2, mTracks);
+        assertEquals(right, mTracks[0].getId());
+        assertEquals(left, mTracks[1].getId());
+        assertTrue(mTracks[0].isConfirmed());
+        assertFalse(mTracks[0].isNew());
+        assertEquals(2, tracker.getBirthCount());
+    }
+
+    @Test
+    public void testCentroidMatchesFastMotionWithoutOverlap() {
+        FaceTracker tracker = new FaceTracker(CAPACITY, MAX_DETECTIONS);
+        tracker.update(new int[]{0, 0, 100, 100}, 1, mTracks);
+        final int id = mTracks[0].getId();
+        tracker.update(new int[]{40, 0, 140, 100}, 1, mTracks);
+        assertEquals(id, mTracks[0].getId());
+        // Keeps moving 40 per frame; the predicted box still overlaps
+        tracker.update(new int[]{80, 0, 180, 100}, 1, mTracks);
+        assertEquals(id, mTracks[0].getId());
+        tracker.update(new int[]{400, 400, 500, 500}, 1, mTracks);
+        assertNotEquals(id, mTracks[0].getId());
+        assertTrue(mTracks[0].isNew());
+    }
+
+    @Test
+    public void testTentativeTrackDiesOnFirstMiss() {
+        FaceTracker tracker = new FaceTracker(CAPACITY, MAX_DETECTIONS);
+        tracker.update(new int[]{0, 0, 50, 50}, 1, mTracks);
+        assertFalse(mTracks[0].isConfirmed());
+        tracker.update(new int[0], 0, mTracks);
+        assertEquals(0, tracker.getActiveCount());
+        assertEquals(1, tracker.getDeathCount());
+    }
+
+    @Test
+    public void testConfirmedTrackCoastsThroughMisses() {
+        FaceTracker tracker = new FaceTracker(CAPACITY, MAX_DETECTIONS);
+        tracker.setMaxMisses(3);
+        final int[] box = {10, 10, 60, 60};
+        tracker.update(box, 1, mTracks);
+        tracker.update(box, 1, mTracks);
+        final FaceTracker.Track track = mTracks[0];
+        assertTrue(track.isConfirmed());
+        for (int i = 0; i < 3; i++) {
+            tracker.update(new int[0], 0, mTracks);
+            assertEquals(1, tracker.getActiveCount());
+        }
+        tracker.update(box, 1, mTracks);
+        assertSame(track, mTracks[0]);
+        assertFalse(track.isNew());
+
+        for (int i = 0; i < 4; i++) {
+            tracker.update(new int[0], 0, mTracks);
+        }
+        assertEquals(0, tracker.getActiveCount());
+    }
+
+    @Test
+    public void testPoolIsReusedWithoutGrowing() {
+        FaceTracker tracker = new FaceTracker(CAPACITY, MAX_DETECTIONS);
+        tracker.setMaxMisses(100);
+        int lastId = 0;
+        // Faces jump around, so every frame births new tracks while old ones coast
+        for (int frame = 0; frame < 50; frame++) {
+            final int x = (frame % 10) * 1000;
+            tracker.update(new int[]{x, 0, x + 50, 50, x, 500, x + 50, 550}, 2, mTracks);
+            for (int d = 0; d < 2; d++) {
+                assertTrue(mTracks[d].getIndex() < CAPACITY);
+                assertTrue(mTracks[d].getId() > lastId - 2);
+            }
+            lastId = Math.max(mTracks[0].getId(), mTracks[1].getId());
+            assertTrue(tracker.getActiveCount() <= CAPACITY);
+        }
+    }
+
+    @Test
+    public void testExtraDetectionsAreIgnored() {
+        FaceTracker tracker = new FaceTracker(CAPACITY, 1);
+        FaceTracker.Track[] tracks = new FaceTracker.Track[1];
+        tracker.update(new int[]{0, 0, 50, 50, 200, 0, 250, 50}, 2, tracks);
+        assertEquals(1, tracker.getActiveCount());
+    }
+}
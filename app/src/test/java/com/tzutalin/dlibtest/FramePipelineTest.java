@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the drop policies of {@link FrameQueue} and the slot flow through {@link FramePipeline}.
+ */
+public class FramePipelineTest {
+
+    @Test
+    public void testDropOldestEvictsHead() throws InterruptedException {
+        FrameQueue<String> queue = new FrameQueue<>(2, FrameQueue.DropPolicy.DROP_OLDEST);
+        assertNull(queue.offer("a"));
+        assertNull(queue.offer("b"));
+        assertEquals("a", queue.offer("c"));
+        assertEquals(1, queue.getDropCount());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDropNewestRejectsOffer() throws InterruptedException {
+        FrameQueue<String> queue = new FrameQueue<>(2, FrameQueue.DropPolicy.DROP_NEWEST);
+        queue.offer("a");
+        queue.offer("b");
+        assertEquals("c", queue.offer("c"));
+        assertEquals(1, queue.getDropCount());
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+    }
+
+    @Test
+    public void testBlockWaitsForConsumer() throws Exception {
+        final FrameQueue<String> queue = new FrameQueue<>(1, FrameQueue.DropPolicy.BLOCK);
+        queue.offer("a");
+        final CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.offer("b");
+                    offered.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        assertTrue(!offered.await(50, TimeUnit.MILLISECONDS));
+        assertEquals("a", queue.take());
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        assertEquals("b", queue.take());
+        assertEquals(0, queue.getDropCount());
+        producer.join();
+    }
+
+    @Test
+    public void testCloseReleasesWaiters() throws Exception {
+        final FrameQueue<String> queue = new FrameQueue<>(1, FrameQueue.DropPolicy.BLOCK);
+        final String[] taken = {"unset"};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        queue.close();
+        consumer.join(5000);
+        assertNull(taken[0]);
+        assertEquals("x", queue.offer("x"));
+    }
+
+    @Test
+    public void testFramesPassEveryStageInOrder() throws Exception {
+        final int frames = 200;
+        final List<int[]> slots = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            slots.add(new int[2]);
+        }
+        final List<Integer> rendered = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(frames);
+        FramePipeline<int[]> pipeline = new FramePipeline<>(slots, 1, FrameQueue.DropPolicy.BLOCK);
+        pipeline.addStage("Double", new FramePipeline.Stage<int[]>() {
+            @Override
+            public void process(int[] frame) {
+                frame[1] = frame[0] * 2;
+            }
+        }).addStage("Collect", new FramePipeline.Stage<int[]>() {
+            @Override
+            public void process(int[] frame) {
+                assertEquals(frame[0] * 2, frame[1]);
+                rendered.add(frame[0]);
+                done.countDown();
+            }
+        });
+        pipeline.start();
+
+        for (int i = 0; i < frames; i++) {
+            int[] slot;
+            while ((slot = pipeline.acquire()) == null) {
+                Thread.yield();
+            }
+            slot[0] = i;
+            pipeline.submit(slot);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pipeline.stop();
+
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i, (int) rendered.get(i));
+        }
+        assertEquals(frames, pipeline.getProcessedCount(0));
+        assertEquals(0, pipeline.getDropCount(0) + pipeline.getDropCount(1));
+    }
+
+    @Test
+    public void testSlowStageDropsAndRecyclesSlots() throws Exception {
+        final List<Object> slots = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            slots.add(new Object());
+        }
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FramePipeline<Object> pipeline = new FramePipeline<>(slots, 1, FrameQueue.DropPolicy.DROP_OLDEST);
+        pipeline.addStage("Slow", new FramePipeline.Stage<Object>() {
+            @Override
+            public void process(Object frame) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        pipeline.start();
+
+        // The first frame blocks the stage, each further one replaces the queued frame
+        Object first = pipeline.acquire();
+        pipeline.submit(first);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            Object slot = pipeline.acquire();
+            if (slot != null) {
+                pipeline.submit(slot);
+            }
+        }
+        assertTrue(pipeline.getDropCount(0) > 0);
+        assertEquals(0, pipeline.getIngestDropCount());
+        release.countDown();
+        pipeline.stop();
+    }
+
+    @Test
+    public void testThrowingStageRecyclesSlot() throws Exception {
+        final List<Object> slots = new ArrayList<>();
+        slots.add(new Object());
+        final CountDownLatch failed = new CountDownLatch(1);
+        FramePipeline<Object> pipeline = new FramePipeline<>(slots, 1, FrameQueue.DropPolicy.DROP_OLDEST);
+        pipeline.addStage("Fail", new FramePipeline.Stage<Object>() {
+            @Override
+            public void process(Object frame) {
+                failed.countDown();
+                throw new IllegalStateException("expected");
+            }
+        });
+        pipeline.start();
+        pipeline.submit(pipeline.acquire());
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        Object slot = null;
+        for (int i = 0; i < 1000 && slot == null; i++) {
+            slot = pipeline.acquire();
+            Thread.sleep(1);
+        }
+        pipeline.stop();
+        assertSame(slots.get(0), slot);
+        assertEquals(1, pipeline.getErrorCount(0));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Per-call cost of the head pose geometry after solvePnP: the complete closed-form chain of
+ * {@link HeadPoseMath}, and the head angles alone against the law of cosines chain it replaced.
+ * The OpenCV calls of the old chain need the native library and are not measured here.
+ * Nanoseconds per call are printed to stdout; skipped unless run with
+ * {@code ./gradlew test -Pbenchmark}.
+ */
+public class HeadPoseMathBenchmark {
+    private static final int POSES = 1024;
+    private static final int ROUNDS = 2000;
+
+    private final double[][] mRvecs = new double[POSES][3];
+    private final double[][] mTvecs = new double[POSES][3];
+    private final double[] mRotation = new double[9];
+    private final double[] mPoint = new double[3];
+    private final double[] mEuler = new double[3];
+    private final double[] mProjected = new double[2];
+    private double mSink;
+
+    @BeforeClass
+    public static void assumeBenchmarksEnabled() {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark", Boolean.getBoolean("dlibtest.benchmark"));
+    }
+
+    @Test
+    public void benchmarkPerCall() {
+        Random random = new Random(3);
+        for (int i = 0; i < POSES; i++) {
+            for (int k = 0; k < 3; k++) {
+                mRvecs[i][k] = random.nextGaussian() * 0.3;
+                mTvecs[i][k] = random.nextGaussian() * 50;
+            }
+            mTvecs[i][2] -= 1500;
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass warms up the JIT
+            final long full = time(new Runnable() {
+                @Override
+                public void run() {
+                    fullChain();
+                }
+            });
+            final long cosines = time(new Runnable() {
+                @Override
+                public void run() {
+                    lawOfCosinesAngles();
+                }
+            });
+            final long closed = time(new Runnable() {
+                @Override
+                public void run() {
+                    closedFormAngles();
+                }
+            });
+            if (pass == 1) {
+                System.out.println(String.format("head pose math: full chain %.1f ns, angles by law of cosines %.1f ns,"
+                                + " closed form %.1f ns (%s)", full / (double) (POSES * ROUNDS),
+                        cosines / (double) (POSES * ROUNDS), closed / (double) (POSES * ROUNDS), mSink));
+            }
+        }
+    }
+
+    private static long time(Runnable body) {
+        final long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            body.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void fullChain() {
+        for (int i = 0; i < POSES; i++) {
+            HeadPoseMath.rotationMatrix(mRvecs[i], mRotation);
+            HeadPoseMath.cameraDirection(mRotation, mTvecs[i], 400, mPoint);
+            HeadPoseMath.eulerAngles(mRotation, mEuler);
+            HeadPoseMath.project(mRotation, mTvecs[i], 320, 320, 160, 160, 0, 0, 400, mProjected);
+            HeadPoseMath.project(mRotation, mTvecs[i], 320, 320, 160, 160, mPoint[0], mPoint[1], mPoint[2],
+                    mProjected);
+            mSink += HeadPoseMath.angleXz(mPoint) + HeadPoseMath.angleYz(mPoint) + mEuler[0] + mProjected[0];
+        }
+    }
+
+    private void lawOfCosinesAngles() {
+        for (int i = 0; i < POSES; i++) {
+            final double[] t = mTvecs[i];
+            mSink += HeadPoseMathTest.lawOfCosines(t[0], -t[2]) + HeadPoseMathTest.lawOfCosines(t[1], -t[2]);
+        }
+    }
+
+    private void closedFormAngles() {
+        for (int i = 0; i < POSES; i++) {
+            final double[] t = mTvecs[i];
+            mPoint[0] = t[0];
+            mPoint[1] = t[1];
+            mPoint[2] = -t[2];
+            mSink += HeadPoseMath.angleXz(mPoint) + HeadPoseMath.angleYz(mPoint);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link HeadPoseMath} against independent formulas and against the law of cosines
+ * chain the analysis stage used for the head angles before.
+ */
+public class HeadPoseMathTest {
+    private static final double EPSILON = 1e-9;
+    private static final double VECTOR_SIZE = 400.0;
+
+    @Test
+    public void testRotationMatrixMatchesQuaternion() {
+        Random random = new Random(7);
+        double[] r = new double[9];
+        for (int i = 0; i < 100; i++) {
+            double[] rvec = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+            HeadPoseMath.rotationMatrix(rvec, r);
+            assertArrayEquals(quaternionRotation(rvec), r, EPSILON);
+        }
+    }
+
+    @Test
+    public void testZeroRotationIsIdentity() {
+        double[] r = new double[9];
+        HeadPoseMath.rotationMatrix(new double[3], r);
+        assertArrayEquals(new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, r, 0);
+    }
+
+    @Test
+    public void testEulerAnglesRoundTrip() {
+        double[] r = new double[9];
+        double[] angles = new double[3];
+        double[][] cases = {{0.3, -0.2, 0.1}, {-1.2, 0.7, -2.5}, {0, 0, 0}, {1.4, 3.0, -3.0}};
+        for (double[] expected : cases) {
+            composeRotation(expected[0], expected[1], expected[2], r);
+            HeadPoseMath.eulerAngles(r, angles);
+            assertArrayEquals(expected, angles, EPSILON);
+        }
+    }
+
+    @Test
+    public void testCameraDirectionMatchesNegatedRotatedTranslation() {
+        double[] r = new double[9];
+        double[] rvec = {0.1, -0.4, 0.05};
+        double[] tvec = {12, -30, -900};
+        HeadPoseMath.rotationMatrix(rvec, r);
+
+        // As before: ans = -R * t, then divided by ans.z / VECTOR_SIZE
+        double[] ans = new double[3];
+        for (int row = 0; row < 3; row++) {
+            ans[row] = -(r[3 * row] * tvec[0] + r[3 * row + 1] * tvec[1] + r[3 * row + 2] * tvec[2]);
+        }
+        double t = ans[2] / VECTOR_SIZE;
+        double[] point = new double[3];
+        HeadPoseMath.cameraDirection(r, tvec, VECTOR_SIZE, point);
+        assertArrayEquals(new double[]{ans[0] / t, ans[1] / t, ans[2] / t}, point, 1e-6);
+    }
+
+    @Test
+    public void testProjectIsPinhole() {
+        double[] r = new double[9];
+        double[] out = new double[2];
+        HeadPoseMath.rotationMatrix(new double[3], r);
+        HeadPoseMath.project(r, new double[]{0, 0, 1000}, 320, 320, 160, 160, 100, 50, 0, out);
+        assertArrayEquals(new double[]{160 + 32, 160 + 16}, out, EPSILON);
+
+        // A quarter turn about y sends +z to +x
+        HeadPoseMath.rotationMatrix(new double[]{0, Math.PI / 2, 0}, r);
+        HeadPoseMath.project(r, new double[]{0, 0, 800}, 320, 320, 160, 160, 0, 0, 400, out);
+        assertArrayEquals(new double[]{160 + 160, 160}, out, EPSILON);
+    }
+
+    @Test
+    public void testHeadAnglesMatchLawOfCosines() {
+        Random random = new Random(11);
+        for (int i = 0; i < 1000; i++) {
+            double[] point = {random.nextGaussian() * 500, random.nextGaussian() * 500,
+                    i % 2 == 0 ? VECTOR_SIZE : random.nextGaussian() * 500};
+            assertEquals(lawOfCosines(point[0], point[2]), HeadPoseMath.angleXz(point), 1e-7);
+            assertEquals(lawOfCosines(point[1], point[2]), HeadPoseMath.angleYz(point), 1e-7);
+        }
+    }
+
+    /**
+     * The angle at the nose between the nose axis tip and the camera point, as it was computed.
+     */
+    static double lawOfCosines(double a, double z) {
+        Double dist_nose_look = Math.sqrt(Math.pow(0 - 0, 2) + Math.pow(0 - VECTOR_SIZE, 2));
+        Double dist_nose_camera = Math.sqrt(Math.pow(0 - a, 2) + Math.pow(0 - z, 2));
+        Double dist_look_camera = Math.sqrt(Math.pow(0 - a, 2) + Math.pow(VECTOR_SIZE - z, 2));
+        return Math.acos((Math.pow(dist_look_camera, 2) - Math.pow(dist_nose_look, 2) - Math.pow(dist_nose_camera, 2))
+                / (-2 * dist_nose_look * dist_nose_camera));
+    }
+
+    private static double[] quaternionRotation(double[] rvec) {
+        double theta = Math.sqrt(rvec[0] * rvec[0] + rvec[1] * rvec[1] + rvec[2] * rvec[2]);
+        double s = Math.sin(theta / 2) / theta;
+        double w = Math.cos(theta / 2);
+        double x = rvec[0] * s;
+        double y = rvec[1] * s;
+        double z = rvec[2] * s;
+        return new double[]{
+                1 - 2 * (y * y + z * z), 2 * (x * y - z * w), 2 * (x * z + y * w),
+                2 * (x * y + z * w), 1 - 2 * (x * x + z * z), 2 * (y * z - x * w),
+                2 * (x * z - y * w), 2 * (y * z + x * w), 1 - 2 * (x * x + y * y)};
+    }
+
+    private static void composeRotation(double yaw, double pitch, double roll, double[] r) {
+        double[] rz = {Math.cos(roll), -Math.sin(roll), 0, Math.sin(roll), Math.cos(roll), 0, 0, 0, 1};
+        double[] ry = {Math.cos(yaw), 0, Math.sin(yaw), 0, 1, 0, -Math.sin(yaw), 0, Math.cos(yaw)};
+        double[] rx = {1, 0, 0, 0, Math.cos(pitch), -Math.sin(pitch), 0, Math.sin(pitch), Math.cos(pitch)};
+        multiply(multiply(rz, ry), rx, r);
+    }
+
+    private static double[] multiply(double[] a, double[] b) {
+        double[] out = new double[9];
+        multiply(a, b, out);
+        return out;
+    }
+
+    private static void multiply(double[] a, double[] b, double[] out) {
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                out[3 * row + col] = a[3 * row] * b[col] + a[3 * row + 1] * b[3 + col] + a[3 * row + 2] * b[6 + col];
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares the old plane handling, copying every Image.Plane into a heap byte[] before the
+ * conversion, with reading the direct plane buffers in place. Both sides run the Java
+ * conversion so the difference is the copy. Timings are printed to stdout, the assert checks
+ * that both produce the same pixels; skipped unless run with {@code ./gradlew test -Pbenchmark}.
+ */
+public class ImageUtilsBenchmark {
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+    // Camera HALs commonly pad rows, and chroma is interleaved as in NV21
+    private static final int ROW_PADDING = 64;
+    private static final int UV_PIXEL_STRIDE = 2;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    @BeforeClass
+    public static void assumeBenchmarksEnabled() {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark", Boolean.getBoolean("dlibtest.benchmark"));
+    }
+
+    @Test
+    public void benchmarkCopyVersusDirect() {
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final int yRowStride = width + ROW_PADDING;
+            final int uvRowStride = width + ROW_PADDING;
+            ByteBuffer y = newPlane(yRowStride * height, 1);
+            ByteBuffer u = newPlane(uvRowStride * (height / 2), 2);
+            ByteBuffer v = newPlane(uvRowStride * (height / 2), 3);
+            byte[][] heap = {new byte[y.capacity()], new byte[u.capacity()], new byte[v.capacity()]};
+            int[] copyOut = new int[width * height];
+            int[] directOut = new int[width * height];
+
+            long copyNs = 0;
+            long directNs = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                long start = System.nanoTime();
+                y.rewind();
+                y.get(heap[0]);
+                u.rewind();
+                u.get(heap[1]);
+                v.rewind();
+                v.get(heap[2]);
+                ImageUtils.convertYUV420ToARGB8888Java(ByteBuffer.wrap(heap[0]), ByteBuffer.wrap(heap[1]),
+                        ByteBuffer.wrap(heap[2]), copyOut, width, height, yRowStride, uvRowStride,
+                        UV_PIXEL_STRIDE, false);
+                long copied = System.nanoTime();
+                ImageUtils.convertYUV420ToARGB8888Java(y, u, v, directOut, width, height,
+                        yRowStride, uvRowStride, UV_PIXEL_STRIDE, false);
+                long direct = System.nanoTime();
+                if (round >= WARMUP_ROUNDS) {
+                    copyNs += copied - start;
+                    directNs += direct - copied;
+                }
+            }
+            assertArrayEquals(copyOut, directOut);
+            System.out.println(String.format("%dx%d: copy %d us, direct %d us", width, height,
+                    copyNs / ROUNDS / 1000, directNs / ROUNDS / 1000));
+        }
+    }
+
+    private static ByteBuffer newPlane(int size, long seed) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(size);
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        plane.put(bytes);
+        plane.rewind();
+        return plane;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the fused crop, scale and rotate sampling against the full frame conversion.
+ */
+public class ImageUtilsTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int ROW_STRIDE = 48;
+    private static final int UV_PIXEL_STRIDE = 2;
+
+    @Test
+    public void testUnscaledSampleMatchesCenterOfFullConversion() {
+        ByteBuffer y = randomPlane(ROW_STRIDE * HEIGHT, 1);
+        ByteBuffer u = randomPlane(ROW_STRIDE * HEIGHT / 2, 2);
+        ByteBuffer v = randomPlane(ROW_STRIDE * HEIGHT / 2, 3);
+        int[] full = new int[WIDTH * HEIGHT];
+        ImageUtils.convertYUV420ToARGB8888Java(y, u, v, full, WIDTH, HEIGHT,
+                ROW_STRIDE, ROW_STRIDE, UV_PIXEL_STRIDE, false);
+
+        final int side = HEIGHT;
+        final int cropX = (WIDTH - side) / 2;
+        int[] sampled = new int[side * side];
+        for (boolean bilinear : new boolean[]{false, true}) {
+            ImageUtils.sampleYUV420ToARGB8888(y, u, v, WIDTH, HEIGHT, ROW_STRIDE, ROW_STRIDE,
+                    UV_PIXEL_STRIDE, 0, bilinear, sampled, side);
+            for (int row = 0; row < side; row++) {
+                for (int col = 0; col < side; col++) {
+                    assertEquals(full[row * WIDTH + cropX + col], sampled[row * side + col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRotationsMatchRotatedUnrotatedSample() {
+        ByteBuffer y = randomPlane(ROW_STRIDE * HEIGHT, 4);
+        final int size = 12;
+        byte[] upright = new byte[size * size];
+        ImageUtils.sampleYUV420ToGray(y, WIDTH, HEIGHT, ROW_STRIDE, 0, true, upright, size);
+
+        byte[] rotated = new byte[size * size];
+        ImageUtils.sampleYUV420ToGray(y, WIDTH, HEIGHT, ROW_STRIDE, 90, true, rotated, size);
+        for (int dy = 0; dy < size; dy++) {
+            for (int dx = 0; dx < size; dx++) {
+                // A clockwise quarter turn moves the left column to the top row
+                assertEquals(upright[(size - 1 - dx) * size + dy], rotated[dy * size + dx]);
+            }
+        }
+
+        ImageUtils.sampleYUV420ToGray(y, WIDTH, HEIGHT, ROW_STRIDE, 180, true, rotated, size);
+        for (int dy = 0; dy < size; dy++) {
+            for (int dx = 0; dx < size; dx++) {
+                assertEquals(upright[(size - 1 - dy) * size + size - 1 - dx], rotated[dy * size + dx]);
+            }
+        }
+
+        ImageUtils.sampleYUV420ToGray(y, WIDTH, HEIGHT, ROW_STRIDE, 270, true, rotated, size);
+        for (int dy = 0; dy < size; dy++) {
+            for (int dx = 0; dx < size; dx++) {
+                assertEquals(upright[dx * size + size - 1 - dy], rotated[dy * size + dx]);
+            }
+        }
+    }
+
+    @Test
+    public void testBilinearDownscaleAveragesNeighbours() {
+        // Columns alternate 100 and 200, so sampling halfway between two columns gives 150
+        byte[] bytes = new byte[ROW_STRIDE * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                bytes[row * ROW_STRIDE + col] = (byte) (col % 2 == 0 ? 100 : 200);
+            }
+        }
+        final int size = HEIGHT / 2;
+        byte[] sampled = new byte[size * size];
+        ImageUtils.sampleYUV420ToGray(ByteBuffer.wrap(bytes), WIDTH, HEIGHT, ROW_STRIDE, 0, true, sampled, size);
+        byte[] expected = new byte[size * size];
+        Arrays.fill(expected, (byte) 150);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], sampled[i]);
+        }
+    }
+
+    private static ByteBuffer randomPlane(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the handoff latency of one frame from a producer to a waiting consumer thread:
+ * the old Handler path, a new Runnable posted to a message queue per frame, modelled by a
+ * LinkedBlockingQueue since a Looper does not run on the JVM; the locked {@link FrameQueue};
+ * and the lock-free {@link SpscRing}. Each frame is sent only after the previous one arrived,
+ * so the consumer is idle and has to be woken every time, as between camera frames.
+ * Median and 99th percentile are printed to stdout; skipped unless run with
+ * {@code ./gradlew test -Pbenchmark}.
+ */
+public class SpscRingBenchmark {
+    private static final int WARMUP_FRAMES = 5000;
+    private static final int FRAMES = 20000;
+
+    @BeforeClass
+    public static void assumeBenchmarksEnabled() {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark", Boolean.getBoolean("dlibtest.benchmark"));
+    }
+
+    @Test
+    public void benchmarkHandoffLatency() throws Exception {
+        report("handler", new HandlerChannel());
+        report("monitor", new MonitorChannel());
+        report("spsc", new SpscChannel());
+    }
+
+    private static void report(String name, Channel channel) throws Exception {
+        measure(channel, WARMUP_FRAMES);
+        long[] latencies = measure(channel, FRAMES);
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s: median %d ns, p99 %d ns", name,
+                latencies[latencies.length / 2], latencies[latencies.length * 99 / 100]));
+    }
+
+    private static long[] measure(final Channel channel, final int frames) throws Exception {
+        final long[] sent = new long[frames];
+        final long[] latencies = new long[frames];
+        final int[] received = new int[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        int frame = channel.receive();
+                        latencies[frame] = System.nanoTime() - sent[frame];
+                        channel.ack();
+                    }
+                    received[0] = frames;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < frames; i++) {
+            sent[i] = System.nanoTime();
+            channel.send(i);
+            channel.awaitAck();
+        }
+        consumer.join();
+        assertEquals(frames, received[0]);
+        return latencies;
+    }
+
+    private abstract static class Channel {
+        private volatile int mAcks;
+        private int mAwaited;
+
+        abstract void send(int frame) throws InterruptedException;
+
+        abstract int receive() throws InterruptedException;
+
+        void ack() {
+            mAcks++;
+        }
+
+        void awaitAck() {
+            mAwaited++;
+            while (mAcks != mAwaited) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static final class HandlerChannel extends Channel {
+        private final BlockingQueue<Runnable> mMessages = new LinkedBlockingQueue<>();
+        private int mDelivered;
+
+        @Override
+        void send(final int frame) throws InterruptedException {
+            mMessages.put(new Runnable() {
+                @Override
+                public void run() {
+                    mDelivered = frame;
+                }
+            });
+        }
+
+        @Override
+        int receive() throws InterruptedException {
+            mMessages.take().run();
+            return mDelivered;
+        }
+    }
+
+    private static final class MonitorChannel extends Channel {
+        private final FrameQueue<int[]> mQueue = new FrameQueue<>(4, FrameQueue.DropPolicy.BLOCK);
+        private final int[] mSlot = new int[1];
+
+        @Override
+        void send(int frame) throws InterruptedException {
+            mSlot[0] = frame;
+            mQueue.offer(mSlot);
+        }
+
+        @Override
+        int receive() throws InterruptedException {
+            return mQueue.take()[0];
+        }
+    }
+
+    private static final class SpscChannel extends Channel {
+        private final SpscRing<int[]> mRing = new SpscRing<>(4, FrameQueue.DropPolicy.BLOCK);
+        private final int[] mSlot = new int[1];
+
+        @Override
+        void send(int frame) throws InterruptedException {
+            mSlot[0] = frame;
+            mRing.offer(mSlot);
+        }
+
+        @Override
+        int receive() throws InterruptedException {
+            return mRing.take()[0];
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress tests {@link SpscRing} with a real producer and consumer thread: frames must arrive in
+ * order, and every frame is either delivered or reported as dropped.
+ */
+public class SpscRingTest {
+    private static final int FRAMES = 500000;
+
+    @Test
+    public void testCapacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new SpscRing<Integer>(1, FrameQueue.DropPolicy.BLOCK).capacity());
+        assertEquals(4, new SpscRing<Integer>(3, FrameQueue.DropPolicy.BLOCK).capacity());
+        assertEquals(8, new SpscRing<Integer>(8, FrameQueue.DropPolicy.BLOCK).capacity());
+    }
+
+    @Test
+    public void testSingleThreadedPolicies() throws InterruptedException {
+        SpscRing<Integer> oldest = new SpscRing<>(2, FrameQueue.DropPolicy.DROP_OLDEST);
+        assertNull(oldest.offer(1));
+        assertNull(oldest.offer(2));
+        assertEquals(1, (int) oldest.offer(3));
+        assertEquals(2, (int) oldest.poll());
+        assertEquals(3, (int) oldest.poll());
+        assertNull(oldest.poll());
+
+        SpscRing<Integer> newest = new SpscRing<>(2, FrameQueue.DropPolicy.DROP_NEWEST);
+        newest.offer(1);
+        newest.offer(2);
+        assertEquals(3, (int) newest.offer(3));
+        assertEquals(1, (int) newest.poll());
+        assertEquals(1, newest.getDropCount());
+    }
+
+    @Test
+    public void testBlockDeliversEveryFrameInOrder() throws Exception {
+        Result result = run(FrameQueue.DropPolicy.BLOCK);
+        assertEquals(FRAMES, result.received);
+        assertEquals(0, result.dropped);
+    }
+
+    @Test
+    public void testDropOldestLosesNothingUnaccounted() throws Exception {
+        Result result = run(FrameQueue.DropPolicy.DROP_OLDEST);
+        assertEquals(FRAMES, result.received + result.dropped);
+        assertEquals(result.dropped, result.ringDrops);
+    }
+
+    @Test
+    public void testDropNewestLosesNothingUnaccounted() throws Exception {
+        Result result = run(FrameQueue.DropPolicy.DROP_NEWEST);
+        assertEquals(FRAMES, result.received + result.dropped);
+        assertEquals(result.dropped, result.ringDrops);
+    }
+
+    @Test
+    public void testCloseWakesParkedConsumer() throws Exception {
+        final SpscRing<Integer> ring = new SpscRing<>(4, FrameQueue.DropPolicy.BLOCK);
+        final AtomicReference<Object> taken = new AtomicReference<Object>("unset");
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(ring.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(20);
+        ring.close();
+        consumer.join(5000);
+        assertNull(taken.get());
+    }
+
+    private static Result run(FrameQueue.DropPolicy policy) throws Exception {
+        final SpscRing<Integer> ring = new SpscRing<>(4, policy);
+        final Result result = new Result();
+        final AtomicReference<AssertionError> failure = new AtomicReference<>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int last = -1;
+                try {
+                    Integer frame;
+                    while ((frame = ring.take()) != null) {
+                        if (frame <= last) {
+                            failure.set(new AssertionError(frame + " after " + last));
+                            return;
+                        }
+                        last = frame;
+                        result.received++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "consumer");
+        consumer.start();
+
+        // Boxed once up front, so the producer loop is as tight as the consumer's
+        Integer[] frames = new Integer[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            frames[i] = i;
+        }
+        for (int i = 0; i < FRAMES; i++) {
+            if (ring.offer(frames[i]) != null) {
+                result.dropped++;
+            }
+        }
+        while (ring.size() > 0 && consumer.isAlive()) {
+            Thread.yield();
+        }
+        ring.close();
+        consumer.join(5000);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertTrue(!consumer.isAlive());
+        result.ringDrops = ring.getDropCount();
+        return result;
+    }
+
+    private static final class Result {
+        int received;
+        int dropped;
+        long ringDrops;
+    }
+}
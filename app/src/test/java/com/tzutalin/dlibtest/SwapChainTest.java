@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the buffer rotation of {@link SwapChain} and that a consumer never sees a buffer the
+ * producer is still writing.
+ */
+public class SwapChainTest {
+
+    @Test
+    public void testConsumeReturnsLatestPublished() {
+        SwapChain<int[]> chain = newChain();
+        assertNull(chain.consume());
+
+        int[] first = chain.getBack();
+        first[0] = 1;
+        assertTrue(chain.publish(10));
+        assertNotSame(first, chain.getBack());
+
+        assertSame(first, chain.consume());
+        assertEquals(10, chain.getFrontStampNs());
+        assertNull(chain.consume());
+    }
+
+    @Test
+    public void testUnconsumedFrameIsDropped() {
+        SwapChain<int[]> chain = newChain();
+        chain.publish(1);
+        int[] second = chain.getBack();
+        assertFalse(chain.publish(2));
+        assertEquals(1, chain.getDropCount());
+        assertEquals(2, chain.getPublishCount());
+
+        assertSame(second, chain.consume());
+        assertEquals(2, chain.getFrontStampNs());
+    }
+
+    @Test
+    public void testProducerNeverGetsFront() {
+        SwapChain<int[]> chain = newChain();
+        for (int i = 0; i < 20; i++) {
+            chain.publish(i);
+            int[] front = chain.consume();
+            assertNotSame(front, chain.getBack());
+            if (i % 3 == 0) {
+                // A publish without consume must not hand out the front buffer either
+                chain.publish(i);
+                assertNotSame(front, chain.getBack());
+            }
+        }
+    }
+
+    @Test
+    public void testSetBackReplacesOnlyBackBuffer() {
+        SwapChain<int[]> chain = new SwapChain<>();
+        assertNull(chain.getBack());
+        int[] buffer = new int[1];
+        chain.setBack(buffer);
+        chain.publish(0);
+        assertSame(buffer, chain.consume());
+        assertNull(chain.getBack());
+    }
+
+    @Test
+    public void testConcurrentFramesAreNeverTorn() throws Exception {
+        final SwapChain<int[]> chain = newChain();
+        final int frames = 200000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= frames; i++) {
+                    int[] back = chain.getBack();
+                    for (int k = 0; k < back.length; k++) {
+                        back[k] = i;
+                    }
+                    chain.publish(i);
+                }
+            }
+        });
+        producer.start();
+
+        long last = 0;
+        long consumed = 0;
+        while (last < frames) {
+            final boolean done = !producer.isAlive();
+            int[] front = chain.consume();
+            if (front == null) {
+                if (done) {
+                    break;
+                }
+                continue;
+            }
+            consumed++;
+            for (int value : front) {
+                if (value != front[0]) {
+                    failure.compareAndSet(null, new AssertionError("Torn frame " + front[0] + "/" + value));
+                }
+            }
+            assertEquals(chain.getFrontStampNs(), front[0]);
+            assertTrue(front[0] > last);
+            last = front[0];
+        }
+        producer.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(frames, last);
+        assertEquals(frames, chain.getPublishCount());
+        assertEquals(frames - consumed, chain.getDropCount());
+    }
+
+    private static SwapChain<int[]> newChain() {
+        return new SwapChain<>(new int[64], new int[64], new int[64]);
+    }
+}
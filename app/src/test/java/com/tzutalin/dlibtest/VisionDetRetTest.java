@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Tzutalin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tzutalin.dlibtest;
+
+import com.tzutalin.dlib.VisionDetRet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the flat landmark storage of {@link VisionDetRet}. getFaceLandmarks is left out, it
+ * builds android.graphics.Points, which the JVM stubs do not support.
+ */
+public class VisionDetRetTest {
+    @Test
+    public void testNoLandmarksByDefault() {
+        VisionDetRet ret = new VisionDetRet("face", 0.9f, 1, 2, 3, 4);
+        assertEquals(0, ret.getLandmarkCount());
+        assertEquals(0, ret.getLandmarkArray().length);
+    }
+
+    @Test
+    public void testAccessorsReadInterleavedLandmarks() {
+        VisionDetRet ret = new VisionDetRet("face", 0.9f, 1, 2, 3, 4);
+        ret.addLandmark(10, 20);
+        ret.addLandmark(11, 21);
+        ret.addLandmark(12, 22);
+        assertEquals(3, ret.getLandmarkCount());
+        assertEquals(11, ret.x(1));
+        assertEquals(21, ret.y(1));
+        int[] array = ret.getLandmarkArray();
+        assertTrue(array.length >= 6);
+        assertEquals(12, array[4]);
+        assertEquals(22, array[5]);
+    }
+
+    @Test
+    public void testLandmarkArrayIsLive() {
+        VisionDetRet ret = new VisionDetRet("face", 0.9f, 1, 2, 3, 4);
+        ret.addLandmark(10, 20);
+        ret.getLandmarkArray()[0] = 15;
+        assertEquals(15, ret.x(0));
+    }
+
+    @Test
+    public void testGrowsBeyondTheModelSize() {
+        VisionDetRet ret = new VisionDetRet("face", 0.9f, 1, 2, 3, 4);
+        for (int i = 0; i < 100; i++) {
+            ret.addLandmark(i, -i);
+        }
+        assertEquals(100, ret.getLandmarkCount());
+        assertEquals(0, ret.x(0));
+        assertEquals(67, ret.x(67));
+        assertEquals(-99, ret.y(99));
+    }
+
+    @Test
+    public void testCopyLandmarksAtOffset() {
+        VisionDetRet ret = new VisionDetRet("face", 0.9f, 1, 2, 3, 4);
+        ret.addLandmark(10, 20);
+        ret.addLandmark(11, 21);
+        float[] dst = new float[6];
+        dst[0] = -1;
+        dst[5] = -1;
+        ret.copyLandmarks(dst, 1);
+        assertArrayEquals(new float[]{-1, 10, 20, 11, 21, -1}, dst, 0);
+    }
+}
@@ -0,0 +1,406 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.dlib;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Face detector and 68 point landmark predictor that stay loaded between calls.
+ * <p>
+ * {@link #open(String)} loads the HOG frontal face detector and the shape predictor once, which
+ * for shape_predictor_68_face_landmarks.dat takes seconds; {@link #detect(Bitmap)} then runs on
+ * the loaded models without passing the model path again. Load time and detection time are
+ * tracked separately so the first frame stall does not skew the steady state numbers.
+ * <p>
+ * In tracking mode ({@link #setDetectionInterval(int)} above 1) the buffer variant of detect
+ * scans the whole frame only every N frames. In between, each face of the previous frame is
+ * searched again inside the region a {@link FaceRegionPredictor} expects it in: its box moved
+ * along its last motion and grown by {@link #setTrackMargin(float)}, which costs a fraction
+ * of a full frame scan. A face that is not found there, or whose new box overlaps the old one
+ * less than {@link #setMinTrackOverlap(float)}, counts as lost and triggers a full detection
+ * on the same frame.
+ * <p>
+ * Calls must come from one thread at a time.
+ */
+public class FaceLandmarkDetector {
+    private static final String TAG = "FaceLandmarkDetector";
+    // Big enough for the HOG detector to run, small enough to contain no face
+    private static final int WARM_UP_SIZE = 80;
+    // Tracking regions are rounded up to this so the region bitmap is rarely reallocated
+    private static final int REGION_ALIGN = 32;
+    private static final int MAX_REGION_FACES = 4;
+    // Faces tracked between full detections; more are only found by the next full detection
+    private static final int MAX_TRACKED_FACES = 16;
+
+    private PeopleDet mPeopleDet;
+    private String mModelPath;
+
+    private long mLoadTimeNs;
+    private long mLastDetectNs;
+    private long mTotalDetectNs;
+    private int mDetectCount;
+
+    private final FaceRegionPredictor mRegionPredictor = new FaceRegionPredictor(MAX_TRACKED_FACES);
+    private final int[] mRegions = new int[4 * MAX_TRACKED_FACES];
+    private final int[] mBoxes = new int[4 * MAX_TRACKED_FACES];
+    private float mMinTrackOverlap = 0.3f;
+    // Faces of the previous frame in the FaceResultView layout
+    private int[] mTracked = new int[FaceResultView.bufferSize(0)];
+    private final int[] mRegionResults = new int[FaceResultView.bufferSize(MAX_REGION_FACES)];
+    private Bitmap mRegionBitmap;
+    private final Canvas mRegionCanvas = new Canvas();
+    private final Rect mRegionSrc = new Rect();
+    private final Rect mRegionDst = new Rect();
+    private long mDetectFrames;
+    private long mTrackFrames;
+    private long mTrackLosses;
+
+    /**
+     * Load the detector and the landmark model. Does nothing if the same model is already open.
+     *
+     * @param modelPath Path of shape_predictor_68_face_landmarks.dat
+     */
+    @WorkerThread
+    public void open(@NonNull String modelPath) {
+        if (mPeopleDet != null) {
+            if (modelPath.equals(mModelPath)) {
+                return;
+            }
+            close();
+        }
+        if (!new File(modelPath).exists()) {
+            throw new IllegalArgumentException("Landmark model not found: " + modelPath);
+        }
+        if (!PeopleDet.sInitialized) {
+            throw new IllegalStateException("people_det library is not loaded");
+        }
+
+        final long start = System.nanoTime();
+        PeopleDet peopleDet = new PeopleDet();
+        peopleDet.init();
+        // The native side deserializes the predictor on the first detection with a new path,
+        // so run one on a blank bitmap to pay that cost here rather than on the first frame
+        Bitmap warmUp = Bitmap.createBitmap(WARM_UP_SIZE, WARM_UP_SIZE, Bitmap.Config.ARGB_8888);
+        peopleDet.detBitmapFace(warmUp, modelPath);
+        warmUp.recycle();
+        mLoadTimeNs = System.nanoTime() - start;
+
+        mPeopleDet = peopleDet;
+        mModelPath = modelPath;
+        mLastDetectNs = 0;
+        mTotalDetectNs = 0;
+        mDetectCount = 0;
+        mDetectFrames = 0;
+        mTrackFrames = 0;
+        mTrackLosses = 0;
+        Log.d(TAG, String.format("Loaded %s in %.1f ms", modelPath, mLoadTimeNs / 1e6f));
+    }
+
+    /**
+     * Release the native detector. The detector can be opened again afterwards.
+     */
+    public void close() {
+        if (mPeopleDet != null) {
+            mPeopleDet.deInit();
+            mPeopleDet = null;
+            mModelPath = null;
+        }
+        if (mRegionBitmap != null) {
+            mRegionBitmap.recycle();
+            mRegionBitmap = null;
+        }
+        resetTracking();
+    }
+
+    public boolean isOpen() {
+        return mPeopleDet != null;
+    }
+
+    /**
+     * Detect faces and their landmarks.
+     *
+     * @param bitmap ARGB_8888 bitmap
+     * @return The list of VisionDetRets
+     */
+    @NonNull
+    @WorkerThread
+    public List<VisionDetRet> detect(@NonNull Bitmap bitmap) {
+        if (mPeopleDet == null) {
+            throw new IllegalStateException("FaceLandmarkDetector is not open");
+        }
+        final long start = System.nanoTime();
+        List<VisionDetRet> ret = mPeopleDet.detBitmapFace(bitmap, mModelPath);
+        mLastDetectNs = System.nanoTime() - start;
+        mTotalDetectNs += mLastDetectNs;
+        mDetectCount++;
+        return ret;
+    }
+
+    /**
+     * Detect faces and their landmarks into a flat buffer, see {@link FaceResultView}.
+     *
+     * @param bitmap  ARGB_8888 bitmap
+     * @param results Buffer of {@link FaceResultView#bufferSize(int)} ints
+     * @return The number of faces written
+     */
+    @WorkerThread
+    public int detect(@NonNull Bitmap bitmap, @NonNull int[] results) {
+        if (mPeopleDet == null) {
+            throw new IllegalStateException("FaceLandmarkDetector is not open");
+        }
+        final long start = System.nanoTime();
+        int count = -1;
+        if (!mRegionPredictor.isFullScanDue()) {
+            count = track(bitmap, results);
+            if (count >= 0) {
+                mTrackFrames++;
+            } else {
+                mTrackLosses++;
+            }
+        }
+        final boolean fullScan = count < 0;
+        if (fullScan) {
+            count = mPeopleDet.detBitmapFace(bitmap, mModelPath, results);
+            mDetectFrames++;
+        }
+        remember(results, count, fullScan);
+        mLastDetectNs = System.nanoTime() - start;
+        mTotalDetectNs += mLastDetectNs;
+        mDetectCount++;
+        return count;
+    }
+
+    /**
+     * Search every previously seen face inside its grown box.
+     *
+     * @return The number of faces written, or -1 if a face was lost
+     */
+    private int track(Bitmap bitmap, int[] results) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int count = Math.min(mRegionPredictor.predict(width, height, mRegions),
+                FaceResultView.capacity(results));
+        for (int f = 0; f < count; f++) {
+            final int base = FaceResultView.HEADER_SIZE + f * FaceResultView.FACE_STRIDE;
+            final int left = mTracked[base + FaceResultView.LEFT];
+            final int top = mTracked[base + FaceResultView.TOP];
+            final int right = mTracked[base + FaceResultView.RIGHT];
+            final int bottom = mTracked[base + FaceResultView.BOTTOM];
+
+            final int region = 4 * f;
+            final int regionWidth = Math.min(width, alignUp(mRegions[region + 2] - mRegions[region]));
+            final int regionHeight = Math.min(height, alignUp(mRegions[region + 3] - mRegions[region + 1]));
+            final int regionLeft = clamp((mRegions[region] + mRegions[region + 2] - regionWidth) / 2,
+                    0, width - regionWidth);
+            final int regionTop = clamp((mRegions[region + 1] + mRegions[region + 3] - regionHeight) / 2,
+                    0, height - regionHeight);
+            if (regionWidth <= 0 || regionHeight <= 0) {
+                mRegionPredictor.abandonRegionScan(f);
+                return -1;
+            }
+
+            if (mRegionBitmap == null || mRegionBitmap.getWidth() != regionWidth
+                    || mRegionBitmap.getHeight() != regionHeight) {
+                if (mRegionBitmap != null) {
+                    mRegionBitmap.recycle();
+                }
+                mRegionBitmap = Bitmap.createBitmap(regionWidth, regionHeight, Bitmap.Config.ARGB_8888);
+                mRegionCanvas.setBitmap(mRegionBitmap);
+            }
+            mRegionSrc.set(regionLeft, regionTop, regionLeft + regionWidth, regionTop + regionHeight);
+            mRegionDst.set(0, 0, regionWidth, regionHeight);
+            mRegionCanvas.drawBitmap(bitmap, mRegionSrc, mRegionDst, null);
+
+            final int found = mPeopleDet.detBitmapFace(mRegionBitmap, mModelPath, mRegionResults);
+            int best = -1;
+            float bestOverlap = mMinTrackOverlap;
+            for (int i = 0; i < found; i++) {
+                final int candidate = FaceResultView.HEADER_SIZE + i * FaceResultView.FACE_STRIDE;
+                final float overlap = overlap(left, top, right, bottom,
+                        mRegionResults[candidate + FaceResultView.LEFT] + regionLeft,
+                        mRegionResults[candidate + FaceResultView.TOP] + regionTop,
+                        mRegionResults[candidate + FaceResultView.RIGHT] + regionLeft,
+                        mRegionResults[candidate + FaceResultView.BOTTOM] + regionTop);
+                if (overlap >= bestOverlap) {
+                    best = candidate;
+                    bestOverlap = overlap;
+                }
+            }
+            if (best < 0) {
+                mRegionPredictor.abandonRegionScan(f + 1);
+                return -1;
+            }
+
+            System.arraycopy(mRegionResults, best, results, base, FaceResultView.FACE_STRIDE);
+            results[base + FaceResultView.LEFT] += regionLeft;
+            results[base + FaceResultView.TOP] += regionTop;
+            results[base + FaceResultView.RIGHT] += regionLeft;
+            results[base + FaceResultView.BOTTOM] += regionTop;
+            for (int i = 0; i < FaceResultView.NUM_LANDMARKS; i++) {
+                results[base + FaceResultView.LANDMARKS + 2 * i] += regionLeft;
+                results[base + FaceResultView.LANDMARKS + 2 * i + 1] += regionTop;
+            }
+        }
+        results[0] = count;
+        return count;
+    }
+
+    private void remember(int[] results, int count, boolean fullScan) {
+        final int size = FaceResultView.bufferSize(count);
+        if (mTracked.length < size) {
+            mTracked = new int[size];
+        }
+        System.arraycopy(results, 0, mTracked, 0, size);
+        mTracked[0] = count;
+
+        final int boxes = Math.min(count, MAX_TRACKED_FACES);
+        for (int f = 0; f < boxes; f++) {
+            final int base = FaceResultView.HEADER_SIZE + f * FaceResultView.FACE_STRIDE;
+            mBoxes[4 * f] = results[base + FaceResultView.LEFT];
+            mBoxes[4 * f + 1] = results[base + FaceResultView.TOP];
+            mBoxes[4 * f + 2] = results[base + FaceResultView.RIGHT];
+            mBoxes[4 * f + 3] = results[base + FaceResultView.BOTTOM];
+        }
+        // The full count lets the predictor rescan in full while faces go unremembered
+        mRegionPredictor.update(mBoxes, count, fullScan);
+    }
+
+    /**
+     * @return Intersection over union of two boxes
+     */
+    static float overlap(int l0, int t0, int r0, int b0, int l1, int t1, int r1, int b1) {
+        final int w = Math.min(r0, r1) - Math.max(l0, l1);
+        final int h = Math.min(b0, b1) - Math.max(t0, t1);
+        if (w <= 0 || h <= 0) {
+            return 0;
+        }
+        final float intersection = (float) w * h;
+        final float union = (float) (r0 - l0) * (b0 - t0) + (float) (r1 - l1) * (b1 - t1) - intersection;
+        return intersection / union;
+    }
+
+    private static int alignUp(int value) {
+        return (value + REGION_ALIGN - 1) / REGION_ALIGN * REGION_ALIGN;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Run the full frame detector every interval frames and track faces in between.
+     *
+     * @param interval 1 detects on every frame, which is the default
+     */
+    public void setDetectionInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be at least 1: " + interval);
+        }
+        mRegionPredictor.setFullScanInterval(interval);
+    }
+
+    public int getDetectionInterval() {
+        return mRegionPredictor.getFullScanInterval();
+    }
+
+    /**
+     * @param margin Growth of a tracked box on every side, as a fraction of its size
+     */
+    public void setTrackMargin(float margin) {
+        if (margin < 0) {
+            throw new IllegalArgumentException("margin must not be negative: " + margin);
+        }
+        mRegionPredictor.setMargin(margin);
+    }
+
+    /**
+     * @param minOverlap Intersection over union between the old and the new box below which a
+     *                   tracked face counts as lost
+     */
+    public void setMinTrackOverlap(float minOverlap) {
+        mMinTrackOverlap = minOverlap;
+    }
+
+    /**
+     * Forget the tracked faces so the next frame runs a full detection.
+     */
+    public void resetTracking() {
+        mTracked[0] = 0;
+        mRegionPredictor.reset();
+    }
+
+    /**
+     * @return Average share of the frame the detector searched, 1 without tracking
+     */
+    public float getAverageScannedArea() {
+        return mRegionPredictor.getAverageScannedArea();
+    }
+
+    /**
+     * @return Frames that ran the full frame detector
+     */
+    public long getDetectFrameCount() {
+        return mDetectFrames;
+    }
+
+    /**
+     * @return Frames served by tracking alone
+     */
+    public long getTrackFrameCount() {
+        return mTrackFrames;
+    }
+
+    /**
+     * @return Frames on which tracking lost a face and fell back to full detection
+     */
+    public long getTrackLossCount() {
+        return mTrackLosses;
+    }
+
+    /**
+     * @return Nanoseconds the last {@link #open(String)} spent loading the models
+     */
+    public long getLoadTimeNs() {
+        return mLoadTimeNs;
+    }
+
+    /**
+     * @return Nanoseconds of the most recent {@link #detect(Bitmap)}
+     */
+    public long getLastDetectTimeNs() {
+        return mLastDetectNs;
+    }
+
+    /**
+     * @return Mean nanoseconds per {@link #detect(Bitmap)} since the models were opened
+     */
+    public long getAverageDetectTimeNs() {
+        return mDetectCount == 0 ? 0 : mTotalDetectNs / mDetectCount;
+    }
+
+    public int getDetectCount() {
+        return mDetectCount;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.dlib;
+
+/**
+ * Predicts where the faces of the last frame are in the next one, so a detector can search only
+ * those regions instead of the whole frame, and says when a full frame scan is due instead.
+ * <p>
+ * A region is the last box moved by the motion of its center since the frame before, grown by
+ * {@link #setMargin(float)} of its size on every side plus the motion itself, and clipped to the
+ * frame. A full scan is due every {@link #setFullScanInterval(int)} frames to pick up new faces,
+ * whenever no face is known, and while the last full scan found more faces than are remembered,
+ * since the ones dropped would otherwise be missing until the next scheduled one. Motion is only
+ * known between two region scans, whose faces keep their order; after a full scan it starts
+ * from zero.
+ * <p>
+ * Boxes and regions are left, top, right, bottom quadruples. Plain Java with no allocation
+ * after construction; calls must come from one thread at a time.
+ */
+public class FaceRegionPredictor {
+    private final int[] mBoxes;
+    private final float[] mMotion;
+    private final float[] mRegionAreas;
+    private int mCount;
+    private boolean mOverflow;
+    private float mMargin = 0.5f;
+    private int mFullScanInterval = 1;
+    private int mFramesSinceFullScan;
+
+    private float mPredictedArea;
+    private double mScannedArea;
+    private long mFullScans;
+    private long mRegionScans;
+
+    /**
+     * @param maxFaces Faces remembered; more are dropped
+     */
+    public FaceRegionPredictor(int maxFaces) {
+        mBoxes = new int[4 * maxFaces];
+        mMotion = new float[2 * maxFaces];
+        mRegionAreas = new float[maxFaces];
+    }
+
+    /**
+     * @param margin Growth of a box on every side, as a fraction of its size
+     */
+    public void setMargin(float margin) {
+        if (margin < 0) {
+            throw new IllegalArgumentException("margin must not be negative: " + margin);
+        }
+        mMargin = margin;
+    }
+
+    /**
+     * @param interval 1 scans the full frame every time, which is the default
+     */
+    public void setFullScanInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be at least 1: " + interval);
+        }
+        mFullScanInterval = interval;
+    }
+
+    public int getFullScanInterval() {
+        return mFullScanInterval;
+    }
+
+    /**
+     * @return True if the next frame should be scanned in full
+     */
+    public boolean isFullScanDue() {
+        return mCount == 0 || mOverflow || mFramesSinceFullScan + 1 >= mFullScanInterval;
+    }
+
+    /**
+     * @return Faces remembered from the last frame, the number of regions to scan
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Write the search region of every remembered face.
+     *
+     * @param regions Receives 4 ints per face
+     * @return The number of regions written
+     */
+    public int predict(int width, int height, int[] regions) {
+        final float frameArea = (float) width * height;
+        float area = 0;
+        for (int i = 0; i < mCount; i++) {
+            final int box = 4 * i;
+            final float motionX = mMotion[2 * i];
+            final float motionY = mMotion[2 * i + 1];
+            final float boxWidth = mBoxes[box + 2] - mBoxes[box];
+            final float boxHeight = mBoxes[box + 3] - mBoxes[box + 1];
+            final float growX = boxWidth * mMargin + Math.abs(motionX);
+            final float growY = boxHeight * mMargin + Math.abs(motionY);
+            final int left = clamp(Math.round(mBoxes[box] + motionX - growX), 0, width);
+            final int top = clamp(Math.round(mBoxes[box + 1] + motionY - growY), 0, height);
+            final int right = clamp(Math.round(mBoxes[box + 2] + motionX + growX), 0, width);
+            final int bottom = clamp(Math.round(mBoxes[box + 3] + motionY + growY), 0, height);
+            regions[box] = left;
+            regions[box + 1] = top;
+            regions[box + 2] = right;
+            regions[box + 3] = bottom;
+            mRegionAreas[i] = frameArea > 0 ? (float) (right - left) * (bottom - top) / frameArea : 0;
+            area += mRegionAreas[i];
+        }
+        mPredictedArea = area;
+        return mCount;
+    }
+
+    /**
+     * Count the regions searched before a face was lost, when the frame is scanned in full after
+     * all. Call between {@link #predict(int, int, int[])} and the {@link #update(int[], int, boolean)}
+     * of the full scan, so the share of the frame scanned includes the abandoned region scan.
+     *
+     * @param scanned Regions searched, in the order they were predicted
+     */
+    public void abandonRegionScan(int scanned) {
+        scanned = Math.min(scanned, mCount);
+        for (int i = 0; i < scanned; i++) {
+            mScannedArea += mRegionAreas[i];
+        }
+    }
+
+    /**
+     * Remember the faces found in a frame.
+     *
+     * @param boxes    4 ints per face, in frame coordinates
+     * @param count    Faces found, which may be more than are remembered
+     * @param fullScan Whether the frame was scanned in full, or only in the predicted regions
+     */
+    public void update(int[] boxes, int count, boolean fullScan) {
+        if (fullScan) {
+            mOverflow = count > mBoxes.length / 4;
+        }
+        count = Math.min(count, mBoxes.length / 4);
+        final boolean sameFaces = !fullScan && count == mCount;
+        for (int i = 0; i < count; i++) {
+            final int box = 4 * i;
+            if (sameFaces) {
+                mMotion[2 * i] = ((boxes[box] + boxes[box + 2]) - (mBoxes[box] + mBoxes[box + 2])) / 2f;
+                mMotion[2 * i + 1] = ((boxes[box + 1] + boxes[box + 3]) - (mBoxes[box + 1] + mBoxes[box + 3])) / 2f;
+            } else {
+                mMotion[2 * i] = 0;
+                mMotion[2 * i + 1] = 0;
+            }
+        }
+        System.arraycopy(boxes, 0, mBoxes, 0, 4 * count);
+        mCount = count;
+        if (fullScan) {
+            mFramesSinceFullScan = 0;
+            mFullScans++;
+            mScannedArea += 1;
+        } else {
+            mFramesSinceFullScan++;
+            mRegionScans++;
+            mScannedArea += mPredictedArea;
+        }
+    }
+
+    /**
+     * Forget the faces so the next frame is scanned in full.
+     */
+    public void reset() {
+        mCount = 0;
+        mOverflow = false;
+        mFramesSinceFullScan = 0;
+    }
+
+    public long getFullScanCount() {
+        return mFullScans;
+    }
+
+    public long getRegionScanCount() {
+        return mRegionScans;
+    }
+
+    /**
+     * @return Average share of the frame scanned per frame, 1 when every frame is a full scan and
+     * more if region scans were abandoned for one
+     */
+    public float getAverageScannedArea() {
+        final long frames = mFullScans + mRegionScans;
+        return frames == 0 ? 1 : (float) (mScannedArea / frames);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
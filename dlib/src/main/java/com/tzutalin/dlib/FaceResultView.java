@@ -0,0 +1,145 @@
+/*
+*  Copyright (C) 2015 TzuTaLin
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.tzutalin.dlib;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Reads face detections straight out of the flat int[] filled by
+ * {@link FaceLandmarkDetector#detect(android.graphics.Bitmap, int[])}.
+ * <p>
+ * Buffer layout: {@code [count, face 0, face 1, ...]} where every face takes
+ * {@link #FACE_STRIDE} ints: left, top, right, bottom, the raw bits of the float confidence and
+ * then x, y of the 68 landmarks. The view copies nothing; {@link #moveToFace(int)} only moves
+ * its read position, so one instance can walk all faces of every frame.
+ */
+public final class FaceResultView {
+    public static final int NUM_LANDMARKS = 68;
+    public static final int HEADER_SIZE = 1;
+    public static final int FACE_STRIDE = 5 + NUM_LANDMARKS * 2;
+
+    static final int LEFT = 0;
+    static final int TOP = 1;
+    static final int RIGHT = 2;
+    static final int BOTTOM = 3;
+    static final int CONFIDENCE = 4;
+    static final int LANDMARKS = 5;
+
+    private int[] mBuffer;
+    private int mBase;
+
+    /**
+     * @return The int[] size needed for up to maxFaces detections
+     */
+    public static int bufferSize(int maxFaces) {
+        return HEADER_SIZE + maxFaces * FACE_STRIDE;
+    }
+
+    /**
+     * @return The number of faces a buffer of the given size can hold
+     */
+    public static int capacity(@NonNull int[] buffer) {
+        return (buffer.length - HEADER_SIZE) / FACE_STRIDE;
+    }
+
+    /**
+     * Point the view at a filled buffer, positioned on the first face.
+     */
+    public FaceResultView wrap(@NonNull int[] buffer) {
+        mBuffer = buffer;
+        mBase = HEADER_SIZE;
+        return this;
+    }
+
+    public int getFaceCount() {
+        return mBuffer[0];
+    }
+
+    public FaceResultView moveToFace(int face) {
+        if (face < 0 || face >= mBuffer[0]) {
+            throw new IndexOutOfBoundsException("face " + face + " of " + mBuffer[0]);
+        }
+        mBase = HEADER_SIZE + face * FACE_STRIDE;
+        return this;
+    }
+
+    public int getLeft() {
+        return mBuffer[mBase + LEFT];
+    }
+
+    public int getTop() {
+        return mBuffer[mBase + TOP];
+    }
+
+    public int getRight() {
+        return mBuffer[mBase + RIGHT];
+    }
+
+    public int getBottom() {
+        return mBuffer[mBase + BOTTOM];
+    }
+
+    public float getConfidence() {
+        return Float.intBitsToFloat(mBuffer[mBase + CONFIDENCE]);
+    }
+
+    /**
+     * @return The X coordinate of landmark i of the current face
+     */
+    public int x(int i) {
+        return mBuffer[mBase + LANDMARKS + 2 * i];
+    }
+
+    /**
+     * @return The Y coordinate of landmark i of the current face
+     */
+    public int y(int i) {
+        return mBuffer[mBase + LANDMARKS + 2 * i + 1];
+    }
+
+    /**
+     * @return The backing buffer, for bulk copies starting at {@link #getLandmarkOffset()}
+     */
+    public int[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return Index of landmark 0's X coordinate of the current face in {@link #getBuffer()}
+     */
+    public int getLandmarkOffset() {
+        return mBase + LANDMARKS;
+    }
+
+    /**
+     * Write one face into a result buffer, from the per-face results of the native library.
+     */
+    static void put(int[] buffer, int face, VisionDetRet det) {
+        final int base = HEADER_SIZE + face * FACE_STRIDE;
+        buffer[base + LEFT] = det.getLeft();
+        buffer[base + TOP] = det.getTop();
+        buffer[base + RIGHT] = det.getRight();
+        buffer[base + BOTTOM] = det.getBottom();
+        buffer[base + CONFIDENCE] = Float.floatToIntBits(det.getConfidence());
+        final int count = Math.min(NUM_LANDMARKS, det.getLandmarkCount());
+        System.arraycopy(det.getLandmarkArray(), 0, buffer, base + LANDMARKS, 2 * count);
+        for (int i = count; i < NUM_LANDMARKS; i++) {
+            buffer[base + LANDMARKS + 2 * i] = 0;
+            buffer[base + LANDMARKS + 2 * i + 1] = 0;
+        }
+    }
+}
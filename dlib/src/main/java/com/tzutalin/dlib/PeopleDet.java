@@ -48,6 +48,8 @@ public class PeopleDet {
     }
 
     protected Context mContext;
+    // Filled by jniGetDLibHOGFaceRet for one face after another by the buffer variant
+    private final VisionDetRet mFaceRet = new VisionDetRet();
 
     @Nullable
     @WorkerThread
@@ -107,6 +109,31 @@ public class PeopleDet {
         return ret;
     }
 
+    /**
+     * Repacks the results of {@link #detBitmapFace(Bitmap, String)} into the flat layout of
+     * {@link FaceResultView} for {@link FaceLandmarkDetector}. This is not batched marshalling:
+     * every face is still its own jniGetDLibHOGFaceRet call with an upcall per landmark, only
+     * through one reused VisionDetRet. Not safe to call from several threads on one instance.
+     *
+     * @param results Buffer of {@link FaceResultView#bufferSize(int)} ints; faces beyond its
+     *                capacity are dropped
+     * @return The number of faces written, also stored in results[0]
+     */
+    @WorkerThread
+    int detBitmapFace(@NonNull Bitmap bitmap, @NonNull String landmarkModelPath, @NonNull int[] results) {
+        int size = jniBitmapFaceDect(bitmap, landmarkModelPath);
+        int capacity = FaceResultView.capacity(results);
+        int count = 0;
+        for (int i = 0; i != size && count < capacity; i++) {
+            mFaceRet.clearLandmarks();
+            int success = jniGetDLibHOGFaceRet(mFaceRet, i);
+            if (success >= 0) {
+                FaceResultView.put(results, count++, mFaceRet);
+            }
+        }
+        results[0] = count;
+        return count;
+    }
 
     public void init() {
         jniInit();
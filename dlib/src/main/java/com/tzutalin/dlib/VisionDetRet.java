@@ -23,18 +23,25 @@ package com.tzutalin.dlib;
 import android.graphics.Point;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A VisionDetRet contains all the information identifying the location and confidence value of the detected object in a bitmap.
  */
 public final class VisionDetRet {
+    private static final int[] NO_LANDMARKS = new int[0];
+    // 68 points of shape_predictor_68_face_landmarks
+    private static final int DEFAULT_LANDMARK_CAPACITY = 68;
+
     private String mLabel;
     private float mConfidence;
     private int mLeft;
     private int mTop;
     private int mRight;
     private int mBottom;
-    private ArrayList<Point> mLandmarkPoints = new ArrayList<>();
+    // Interleaved x, y; allocated on the first landmark so plain detections stay small
+    private int[] mLandmarks = NO_LANDMARKS;
+    private int mLandmarkCount;
 
     VisionDetRet() {
     }
@@ -105,15 +112,81 @@ public final class VisionDetRet {
      * @return
      */
     public boolean addLandmark(int x, int y) {
-        return mLandmarkPoints.add(new Point(x, y));
+        if (2 * mLandmarkCount == mLandmarks.length) {
+            int capacity = Math.max(DEFAULT_LANDMARK_CAPACITY, 2 * mLandmarkCount);
+            mLandmarks = Arrays.copyOf(mLandmarks, 2 * capacity);
+        }
+        mLandmarks[2 * mLandmarkCount] = x;
+        mLandmarks[2 * mLandmarkCount + 1] = y;
+        mLandmarkCount++;
+        return true;
+    }
+
+    /**
+     * Forget the landmarks but keep their storage, so the native side can fill this result again.
+     */
+    void clearLandmarks() {
+        mLandmarkCount = 0;
+    }
+
+    /**
+     * @return The number of landmark points
+     */
+    public int getLandmarkCount() {
+        return mLandmarkCount;
+    }
+
+    /**
+     * @param i Landmark index, below {@link #getLandmarkCount()}
+     * @return The X coordinate of landmark i
+     */
+    public int x(int i) {
+        return mLandmarks[2 * i];
+    }
+
+    /**
+     * @param i Landmark index, below {@link #getLandmarkCount()}
+     * @return The Y coordinate of landmark i
+     */
+    public int y(int i) {
+        return mLandmarks[2 * i + 1];
+    }
+
+    /**
+     * Return the backing landmark array without copying. Landmark i is at [2 * i, 2 * i + 1];
+     * entries from 2 * {@link #getLandmarkCount()} on are unused. Writes go to this result, but
+     * {@link #addLandmark(int, int)} may move the landmarks to a larger array.
+     * @return Interleaved x, y coordinates
+     */
+    public int[] getLandmarkArray() {
+        return mLandmarks;
+    }
+
+    /**
+     * Copy all landmarks as interleaved x, y floats, e.g. for a bulk put into an OpenCV Mat
+     * @param dst    Destination with room for 2 * {@link #getLandmarkCount()} values from offset
+     * @param offset First index written in dst
+     */
+    public void copyLandmarks(float[] dst, int offset) {
+        final int length = 2 * mLandmarkCount;
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = mLandmarks[i];
+        }
     }
 
     /**
-     * Return the list of landmark points
-     * @return ArrayList of android.graphics.Point
+     * Return a copy of the landmark points. The list used to be the live storage; it is now
+     * built on every call, so points added to it or changed in it no longer reach this result.
+     * Use {@link #addLandmark(int, int)} or {@link #getLandmarkArray()} for that, and prefer
+     * {@link #x(int)} and {@link #y(int)} in per frame code.
+     * @return A new ArrayList of android.graphics.Point
      */
     public ArrayList<Point> getFaceLandmarks() {
-        return mLandmarkPoints;
+        ArrayList<Point> points = new ArrayList<>(mLandmarkCount);
+        for (int i = 0; i < mLandmarkCount; i++) {
+            points.add(new Point(mLandmarks[2 * i], mLandmarks[2 * i + 1]));
+        }
+        return points;
     }
 
     @Override